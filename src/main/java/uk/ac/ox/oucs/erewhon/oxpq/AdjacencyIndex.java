@@ -0,0 +1,333 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.gaboto.GabotoSnapshot;
+
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+/**
+ * The links between the entities of a snapshot, by property, in both 
+ * directions, eg from a unit to what it isPartOf and back.
+ * 
+ * Each property is indexed with one pass over its statements the first 
+ * time it is traversed, and the transitive closure from each entity is 
+ * kept once it has been asked for.
+ * 
+ * The index of a snapshot taken after a write starts from the properties 
+ * indexed here, and reads again only the links of the entities written to.
+ * 
+ */
+final class AdjacencyIndex {
+
+  private static final class Links {
+    private final Map<String, Set<String>> objects = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> subjects = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> objectClosures = new ConcurrentHashMap<String, Set<String>>();
+    private final Map<String, Set<String>> subjectClosures = new ConcurrentHashMap<String, Set<String>>();
+
+    private static void put(Map<String, Set<String>> map, String from, String to) {
+      Set<String> found = map.get(from);
+      if (found == null) {
+        found = new LinkedHashSet<String>();
+        map.put(from, found);
+      }
+      found.add(to);
+    }
+
+    /**
+     * @return a copy with the links from the changed entities read again, 
+     *         sharing the sets of the entities not linked to them
+     */
+    Links update(GabotoSnapshot snapshot, Property property, Collection<String> changed) {
+      Links links = new Links();
+      links.objects.putAll(objects);
+      links.subjects.putAll(subjects);
+      Set<String> copied = new HashSet<String>();
+      for (String subject : changed) {
+        Set<String> old = links.objects.remove(subject);
+        if (old == null)
+          continue;
+        for (String object : old) {
+          Set<String> from = copyOnWrite(links.subjects, object, copied);
+          from.remove(subject);
+          if (from.isEmpty())
+            links.subjects.remove(object);
+        }
+      }
+      for (String subject : changed) {
+        StmtIterator statements = snapshot.getModel().listStatements(
+            ResourceFactory.createResource(subject), property, (RDFNode)null);
+        try {
+          while (statements.hasNext()) {
+            Statement statement = statements.nextStatement();
+            if (!statement.getObject().isURIResource())
+              continue;
+            String object = ((Resource)statement.getObject()).getURI();
+            put(links.objects, subject, object);
+            copyOnWrite(links.subjects, object, copied).add(subject);
+          }
+        } finally {
+          statements.close();
+        }
+      }
+      return links;
+    }
+
+    private static Set<String> copyOnWrite(Map<String, Set<String>> map, String key, Set<String> copied) {
+      if (copied.add(key) || !map.containsKey(key)) {
+        Set<String> shared = map.get(key);
+        map.put(key, shared == null ? new LinkedHashSet<String>() : new LinkedHashSet<String>(shared));
+      }
+      return map.get(key);
+    }
+  }
+
+  private final GabotoSnapshot snapshot;
+  private final Map<String, Links> properties = new HashMap<String, Links>();
+  private final Map<String, Links> earlier;
+  private final Collection<String> changedSubjects;
+
+  AdjacencyIndex(GabotoSnapshot snapshot) {
+    this(snapshot, new HashMap<String, Links>(), null);
+  }
+
+  private AdjacencyIndex(GabotoSnapshot snapshot, Map<String, Links> earlier, Collection<String> changedSubjects) {
+    this.snapshot = snapshot;
+    this.earlier = earlier;
+    this.changedSubjects = changedSubjects;
+  }
+
+  /**
+   * @param later the snapshot after the change
+   * @param changed the entities whose statements may have changed
+   * @return an index of the later snapshot which updates the properties 
+   *         indexed here, each when it is first traversed, rather than 
+   *         reading them all again
+   */
+  synchronized AdjacencyIndex update(GabotoSnapshot later, Collection<String> changed) {
+    return new AdjacencyIndex(later, new HashMap<String, Links>(properties), changed);
+  }
+
+  private synchronized Links getLinks(Property property) {
+    Links links = properties.get(property.getURI());
+    if (links == null) {
+      Links previous = earlier.remove(property.getURI());
+      if (previous != null) {
+        links = previous.update(snapshot, property, changedSubjects);
+        properties.put(property.getURI(), links);
+        return links;
+      }
+      links = new Links();
+      StmtIterator statements = snapshot.getModel().listStatements(null, property, (RDFNode)null);
+      try {
+        while (statements.hasNext()) {
+          Statement statement = statements.nextStatement();
+          if (!statement.getSubject().isURIResource() || !statement.getObject().isURIResource())
+            continue;
+          String subject = statement.getSubject().getURI();
+          String object = ((Resource)statement.getObject()).getURI();
+          Links.put(links.objects, subject, object);
+          Links.put(links.subjects, object, subject);
+        }
+      } finally {
+        statements.close();
+      }
+      properties.put(property.getURI(), links);
+    }
+    return links;
+  }
+
+  /**
+   * Index a property ahead of its first traversal.
+   */
+  void index(Property property) {
+    getLinks(property);
+  }
+
+  /**
+   * Write the properties indexed so far, forward links only.
+   */
+  synchronized void writeTo(DataOutput out) throws IOException {
+    out.writeInt(properties.size());
+    for (Map.Entry<String, Links> property : properties.entrySet()) {
+      out.writeUTF(property.getKey());
+      out.writeInt(property.getValue().objects.size());
+      for (Map.Entry<String, Set<String>> subject : property.getValue().objects.entrySet()) {
+        out.writeUTF(subject.getKey());
+        SnapshotImage.writeStrings(out, subject.getValue());
+      }
+    }
+  }
+
+  /**
+   * Read properties written by {@link #writeTo}, rebuilding the reverse 
+   * links, into an index of no snapshot which is only for {@link #adopt}.
+   */
+  static AdjacencyIndex readFrom(DataInput in) throws IOException {
+    AdjacencyIndex read = new AdjacencyIndex(null);
+    for (int i = in.readInt(); i > 0; i--) {
+      String property = in.readUTF();
+      Links links = new Links();
+      for (int j = in.readInt(); j > 0; j--) {
+        String subject = in.readUTF();
+        for (String object : SnapshotImage.readStrings(in)) {
+          Links.put(links.objects, subject, object);
+          Links.put(links.subjects, object, subject);
+        }
+      }
+      read.properties.put(property, links);
+    }
+    return read;
+  }
+
+  /**
+   * Take the properties of an index read by {@link #readFrom}, keeping 
+   * any already indexed here.
+   */
+  synchronized void adopt(AdjacencyIndex read) {
+    for (Map.Entry<String, Links> property : read.properties.entrySet())
+      if (!properties.containsKey(property.getKey()))
+        properties.put(property.getKey(), property.getValue());
+  }
+
+  /**
+   * @return the URIs of the entities which the given entities have the property pointing to
+   */
+  Collection<String> getObjects(Collection<String> subjects, Property property) {
+    return lookup(getLinks(property).objects, subjects);
+  }
+
+  /**
+   * @return the URIs of the entities which have the property pointing to the given entities
+   */
+  Collection<String> getSubjects(Collection<String> objects, Property property) {
+    return lookup(getLinks(property).subjects, objects);
+  }
+
+  /**
+   * @param maxDepth the most links to follow, -1 for no limit
+   * @return the URIs of the entities reached from the given entities by 
+   *         following the property one or more times, eg all they are part of
+   */
+  Collection<String> getObjectClosure(Collection<String> subjects, Property property, int maxDepth) {
+    Links links = getLinks(property);
+    return closure(links.objects, links.objectClosures, subjects, maxDepth);
+  }
+
+  /**
+   * @param maxDepth the most links to follow, -1 for no limit
+   * @return the URIs of the entities which reach the given entities by 
+   *         following the property one or more times, eg all their parts
+   */
+  Collection<String> getSubjectClosure(Collection<String> objects, Property property, int maxDepth) {
+    Links links = getLinks(property);
+    return closure(links.subjects, links.subjectClosures, objects, maxDepth);
+  }
+
+  private static Collection<String> closure(Map<String, Set<String>> map, Map<String, Set<String>> closures, 
+      Collection<String> from, int maxDepth) {
+    if (maxDepth != -1)
+      return traverse(map, from, maxDepth);
+    if (from.size() == 1)
+      return closure(map, closures, from.iterator().next());
+    Set<String> found = new LinkedHashSet<String>();
+    for (String uri : from)
+      found.addAll(closure(map, closures, uri));
+    return found;
+  }
+
+  private static Set<String> closure(Map<String, Set<String>> map, Map<String, Set<String>> closures, String uri) {
+    Set<String> found = closures.get(uri);
+    if (found == null) {
+      found = Collections.unmodifiableSet(traverse(map, Collections.singleton(uri), -1));
+      closures.put(uri, found);
+    }
+    return found;
+  }
+
+  /**
+   * Breadth first, so that a depth limit is honoured, and stopping at 
+   * entities already reached, so that cycles terminate.
+   */
+  private static Set<String> traverse(Map<String, Set<String>> map, Collection<String> from, int maxDepth) {
+    Set<String> found = new LinkedHashSet<String>();
+    Collection<String> level = from;
+    for (int depth = 0; !level.isEmpty() && (maxDepth == -1 || depth < maxDepth); depth++) {
+      Collection<String> next = new LinkedHashSet<String>();
+      for (String uri : level) {
+        Set<String> to = map.get(uri);
+        if (to == null)
+          continue;
+        for (String reached : to)
+          if (found.add(reached))
+            next.add(reached);
+      }
+      level = next;
+    }
+    found.removeAll(from);
+    return found;
+  }
+
+  private static Collection<String> lookup(Map<String, Set<String>> map, Collection<String> from) {
+    if (from.size() == 1) {
+      Set<String> found = map.get(from.iterator().next());
+      return found == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(found);
+    }
+    Set<String> found = new LinkedHashSet<String>();
+    for (String uri : from) {
+      Set<String> to = map.get(uri);
+      if (to != null)
+        found.addAll(to);
+    }
+    return found;
+  }
+
+}
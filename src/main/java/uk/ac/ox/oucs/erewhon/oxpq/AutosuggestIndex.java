@@ -0,0 +1,293 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.gaboto.node.GabotoEntity;
+import net.sf.gaboto.node.pool.EntityPool;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import uk.ac.ox.oucs.oxpoints.gaboto.entities.Organization;
+import uk.ac.ox.oucs.oxpoints.gaboto.entities.OxpEntity;
+import uk.ac.ox.oucs.oxpoints.gaboto.entities.Place;
+
+/**
+ * The autosuggest items of a snapshot, with a sorted table of 
+ * lower cased names and labels for prefix lookup.
+ * 
+ * Every entity is indexed. An organization which occupies a place of 
+ * the same name is dropped when the results are read, if that place is 
+ * among the entities asked for, so that each name is suggested once. 
+ * A pool without the place, eg the colleges alone, keeps it.
+ * 
+ */
+final class AutosuggestIndex {
+
+  /**
+   * One suggestion, with its JSON rendering prepared in advance.
+   */
+  static final class Item {
+    private final String uri;
+    private final String json;
+    private final List<String> namesakes;
+
+    /**
+     * @param namesakes the places of the same name which the entity occupies
+     */
+    Item(String uri, String json, List<String> namesakes) {
+      this.uri = uri;
+      this.json = json;
+      this.namesakes = namesakes;
+    }
+
+    String getUri() {
+      return uri;
+    }
+
+    List<String> getNamesakes() {
+      return namesakes;
+    }
+
+    /**
+     * @param uris the entities asked for, null for all of them
+     * @return whether a place of the same name the entity occupies is 
+     *         also asked for, and so suggested instead
+     */
+    boolean isShadowed(Set<String> uris) {
+      if (uris == null)
+        return !namesakes.isEmpty();
+      for (String place : namesakes)
+        if (uris.contains(place))
+          return true;
+      return false;
+    }
+
+    /**
+     * @return the item as a JSON object, eg {"id": "23232382", "name": "Wolfson College"}
+     */
+    String getJson() {
+      return json;
+    }
+  }
+
+  private final List<Item> items;
+  private final String[] keys;
+  private final Item[] keyItems;
+
+  private AutosuggestIndex(List<Item> items, String[] keys, Item[] keyItems) {
+    this.items = items;
+    this.keys = keys;
+    this.keyItems = keyItems;
+  }
+
+  /**
+   * @param pool every entity in the snapshot
+   */
+  static AutosuggestIndex build(EntityPool pool) {
+    Map<String, List<OxpEntity>> byName = new HashMap<String, List<OxpEntity>>();
+    for (GabotoEntity entity : pool.getEntities()) {
+      String name = ((OxpEntity) entity).getName();
+      if (name == null)
+        continue;
+      List<OxpEntity> named = byName.get(name);
+      if (named == null) {
+        named = new LinkedList<OxpEntity>();
+        byName.put(name, named);
+      }
+      named.add((OxpEntity) entity);
+    }
+
+    List<Item> items = new ArrayList<Item>();
+    final List<String> keys = new ArrayList<String>();
+    List<Item> keyItems = new ArrayList<Item>();
+    for (List<OxpEntity> named : byName.values()) {
+      Set<Place> places = new HashSet<Place>();
+      for (OxpEntity entity : named)
+        if (entity instanceof Place)
+          places.add((Place) entity);
+      for (OxpEntity entity : named) {
+        List<String> namesakes = Collections.emptyList();
+        if (entity instanceof Organization)
+          namesakes = getOccupied((Organization) entity, places);
+        Set<String> labels = new LinkedHashSet<String>();
+        Item item = createItem(entity, labels, namesakes);
+        items.add(item);
+        for (String label : labels) {
+          keys.add(label.toLowerCase(Locale.ENGLISH));
+          keyItems.add(item);
+        }
+      }
+    }
+
+    // Sort the keys, carrying their items along
+    Integer[] order = new Integer[keys.size()];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return keys.get(a).compareTo(keys.get(b));
+      }
+    });
+    String[] sortedKeys = new String[order.length];
+    Item[] sortedItems = new Item[order.length];
+    for (int i = 0; i < order.length; i++) {
+      sortedKeys[i] = keys.get(order[i]);
+      sortedItems[i] = keyItems.get(order[i]);
+    }
+    return new AutosuggestIndex(Collections.unmodifiableList(items), sortedKeys, sortedItems);
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    Map<Item, Integer> positions = new HashMap<Item, Integer>();
+    out.writeInt(items.size());
+    for (Item item : items) {
+      positions.put(item, positions.size());
+      out.writeUTF(item.getUri());
+      out.writeUTF(item.getJson());
+      SnapshotImage.writeStrings(out, item.getNamesakes());
+    }
+    out.writeInt(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      out.writeUTF(keys[i]);
+      out.writeInt(positions.get(keyItems[i]));
+    }
+  }
+
+  static AutosuggestIndex readFrom(DataInput in) throws IOException {
+    List<Item> items = new ArrayList<Item>();
+    for (int i = in.readInt(); i > 0; i--)
+      items.add(new Item(in.readUTF(), in.readUTF(), SnapshotImage.readStrings(in)));
+    String[] keys = new String[in.readInt()];
+    Item[] keyItems = new Item[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = in.readUTF();
+      keyItems[i] = items.get(in.readInt());
+    }
+    return new AutosuggestIndex(Collections.unmodifiableList(items), keys, keyItems);
+  }
+
+  /**
+   * @return the URIs of the places, of those given, which the organization occupies
+   */
+  private static List<String> getOccupied(Organization org, Set<Place> places) {
+    if (places.isEmpty() || org.getOccupiedPlaces() == null)
+      return Collections.emptyList();
+    List<String> occupied = new ArrayList<String>();
+    for (Place place : org.getOccupiedPlaces())
+      if (places.contains(place))
+        occupied.add(place.getUri());
+    return occupied;
+  }
+
+  /**
+   * @param labels filled with the name and labels the entity can be found by
+   */
+  private static Item createItem(OxpEntity entity, Set<String> labels, List<String> namesakes) {
+    String name;
+    if (entity instanceof Place)
+      name = ((Place) entity).getFullyQualifiedTitle();
+    else
+      name = entity.getName();
+    labels.add(entity.getName());
+    if (name != null)
+      labels.add(name);
+
+    List<String> altLabels = new LinkedList<String>();
+    if (entity.getAltLabels() != null) altLabels.addAll(entity.getAltLabels());
+    if (entity.getHiddenLabels() != null) altLabels.addAll(entity.getHiddenLabels());
+    labels.addAll(altLabels);
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\"id\": \"");
+    json.append(entity.getUri().substring(entity.getUri().lastIndexOf("/")+1));
+    json.append("\", \"name\": \"");
+    json.append(StringEscapeUtils.escapeJava(name)).append('"');
+    if (altLabels.size() > 0) {
+      StringBuilder joined = new StringBuilder(altLabels.get(0));
+      for (int i=1; i<altLabels.size(); i++)
+        joined.append('\t').append(altLabels.get(i));
+      json.append(", \"altNames\": \"");
+      json.append(StringEscapeUtils.escapeJava(joined.toString()));
+      json.append('"');
+    }
+    json.append('}');
+    return new Item(entity.getUri(), json.toString(), namesakes);
+  }
+
+  /**
+   * @param uris the entities to include, null for all of them
+   */
+  List<Item> all(Set<String> uris) {
+    List<Item> found = new ArrayList<Item>();
+    for (Item item : items)
+      if ((uris == null || uris.contains(item.getUri())) && !item.isShadowed(uris))
+        found.add(item);
+    return found;
+  }
+
+  /**
+   * @param prefix matched, ignoring case, against the start of each name and label
+   * @param limit the most items to return
+   * @param uris the entities to include, null for all of them
+   * @return matching items, in order of the label matched
+   */
+  Collection<Item> search(String prefix, int limit, Set<String> uris) {
+    String key = prefix.toLowerCase(Locale.ENGLISH);
+    int i = Arrays.binarySearch(keys, key);
+    if (i < 0)
+      i = -i - 1;
+    Set<Item> found = new LinkedHashSet<Item>();
+    for (; i < keys.length && found.size() < limit && keys[i].startsWith(key); i++)
+      if ((uris == null || uris.contains(keyItems[i].getUri())) && !keyItems[i].isShadowed(uris))
+        found.add(keyItems[i]);
+    return found;
+  }
+
+}
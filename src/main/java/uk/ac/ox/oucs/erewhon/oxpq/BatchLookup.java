@@ -0,0 +1,139 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.gaboto.EntityDoesNotExistException;
+import net.sf.gaboto.node.GabotoEntity;
+
+/**
+ * Resolves many entity specs, eg oucs:oucs, olis:123 or 23232382, at 
+ * once against a snapshot.
+ * 
+ */
+final class BatchLookup {
+
+  /**
+   * The entities found for one spec, none if it was not found.
+   */
+  static final class Item {
+    private final String spec;
+    private final List<GabotoEntity> entities;
+
+    Item(String spec, List<GabotoEntity> entities) {
+      this.spec = spec;
+      this.entities = entities;
+    }
+
+    String getSpec() {
+      return spec;
+    }
+
+    List<GabotoEntity> getEntities() {
+      return entities;
+    }
+
+    boolean isFound() {
+      return !entities.isEmpty();
+    }
+  }
+
+  private final CachedSnapshot snapshot;
+
+  BatchLookup(CachedSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * Every spec is checked here, before any result is written, so that a 
+   * malformed one fails the whole batch rather than a half written response.
+   * 
+   * @param body specs separated by white space, one per line typically
+   * @param maxItems the most specs accepted
+   * @return the distinct specs, in the order given
+   * @throws AnticipatedException 400 if any spec is malformed, 
+   *         413 if there are too many
+   */
+  static Collection<String> readSpecs(Reader body, int maxItems) throws IOException {
+    Set<String> specs = new LinkedHashSet<String>();
+    StringBuilder spec = new StringBuilder();
+    int c;
+    do {
+      c = body.read();
+      if (c == -1 || Character.isWhitespace((char)c)) {
+        if (spec.length() > 0) {
+          if (Query.fromEntitySpec(spec.toString()) == null)
+            throw new AnticipatedException("Unexpected entity spec " + spec, 400);
+          specs.add(spec.toString());
+          if (specs.size() > maxItems)
+            throw new AnticipatedException("More than " + maxItems + " items in batch", 413);
+          spec.setLength(0);
+        }
+      } else {
+        spec.append((char)c);
+      }
+    } while (c != -1);
+    return specs;
+  }
+
+  Item resolve(String spec) {
+    Query q = Query.fromEntitySpec(spec);
+    if (q == null)
+      throw new AnticipatedException("Unexpected entity spec " + spec, 400);
+    Collection<String> uris;
+    if (q.needsCodeLookup()) {
+      uris = new LinkedHashSet<String>();
+      for (String code : q.getParticipantCodes())
+        uris.addAll(snapshot.getCodeIndex().lookup(q.getParticipantCoding(), code));
+    } else {
+      uris = q.getParticipantURIs();
+    }
+    List<GabotoEntity> entities = new ArrayList<GabotoEntity>(uris.size());
+    for (String uri : uris) {
+      try {
+        entities.add(snapshot.getSnapshot().loadEntity(uri));
+      } catch (EntityDoesNotExistException e) {
+        continue;
+      }
+    }
+    return new Item(spec, entities);
+  }
+
+}
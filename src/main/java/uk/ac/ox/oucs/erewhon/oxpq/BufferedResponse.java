@@ -0,0 +1,239 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A response which is not sent anywhere, only held in memory, for 
+ * rendering into the {@link ResponseCache} without a client.
+ * 
+ * Headers other than the content type and the next page cursor are 
+ * ignored.
+ * 
+ */
+class BufferedResponse implements HttpServletResponse {
+
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+  private int status = SC_OK;
+  private String contentType = null;
+  private String nextCursor = null;
+  private String characterEncoding = "UTF-8";
+  private Locale locale = Locale.getDefault();
+  private ServletOutputStream stream = null;
+  private PrintWriter writer = null;
+
+  /**
+   * @return the response, or null if it was not successful
+   */
+  CachedResponse toCachedResponse() {
+    if (writer != null)
+      writer.flush();
+    if (status != SC_OK)
+      return null;
+    return new CachedResponse(contentType, nextCursor, body.toByteArray());
+  }
+
+  int getStatus() {
+    return status;
+  }
+
+  public ServletOutputStream getOutputStream() {
+    if (writer != null)
+      throw new IllegalStateException("getWriter() has already been called");
+    if (stream == null)
+      stream = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          body.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          body.write(b, off, len);
+        }
+      };
+    return stream;
+  }
+
+  public PrintWriter getWriter() throws UnsupportedEncodingException {
+    if (writer == null) {
+      if (stream != null)
+        throw new IllegalStateException("getOutputStream() has already been called");
+      writer = new PrintWriter(new OutputStreamWriter(body, characterEncoding));
+    }
+    return writer;
+  }
+
+  public String getCharacterEncoding() {
+    return characterEncoding;
+  }
+
+  public void setCharacterEncoding(String charset) {
+    if (writer == null)
+      characterEncoding = charset;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public void setContentType(String type) {
+    contentType = type;
+  }
+
+  public void setContentLength(int len) {
+  }
+
+  public void setBufferSize(int size) {
+  }
+
+  public int getBufferSize() {
+    return Integer.MAX_VALUE;
+  }
+
+  public void flushBuffer() {
+    if (writer != null)
+      writer.flush();
+  }
+
+  public void resetBuffer() {
+    if (writer != null)
+      writer.flush();
+    body.reset();
+  }
+
+  public boolean isCommitted() {
+    return false;
+  }
+
+  public void reset() {
+    resetBuffer();
+    status = SC_OK;
+    contentType = null;
+    nextCursor = null;
+  }
+
+  public void setLocale(Locale loc) {
+    locale = loc;
+  }
+
+  public Locale getLocale() {
+    return locale;
+  }
+
+  public void addCookie(Cookie cookie) {
+  }
+
+  public boolean containsHeader(String name) {
+    return false;
+  }
+
+  public String encodeURL(String url) {
+    return url;
+  }
+
+  public String encodeRedirectURL(String url) {
+    return url;
+  }
+
+  /**
+   * @deprecated
+   */
+  @Deprecated
+  public String encodeUrl(String url) {
+    return url;
+  }
+
+  /**
+   * @deprecated
+   */
+  @Deprecated
+  public String encodeRedirectUrl(String url) {
+    return url;
+  }
+
+  public void sendError(int sc, String msg) throws IOException {
+    status = sc;
+  }
+
+  public void sendError(int sc) throws IOException {
+    status = sc;
+  }
+
+  public void sendRedirect(String location) throws IOException {
+    status = SC_MOVED_TEMPORARILY;
+  }
+
+  public void setDateHeader(String name, long date) {
+  }
+
+  public void addDateHeader(String name, long date) {
+  }
+
+  public void setHeader(String name, String value) {
+    if (name.equalsIgnoreCase(CachedResponse.NEXT_CURSOR))
+      nextCursor = value;
+  }
+
+  public void addHeader(String name, String value) {
+  }
+
+  public void setIntHeader(String name, int value) {
+  }
+
+  public void addIntHeader(String name, int value) {
+  }
+
+  public void setStatus(int sc) {
+    status = sc;
+  }
+
+  /**
+   * @deprecated
+   */
+  @Deprecated
+  public void setStatus(int sc, String sm) {
+    status = sc;
+  }
+
+}
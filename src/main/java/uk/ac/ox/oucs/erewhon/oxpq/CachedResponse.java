@@ -0,0 +1,117 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A rendered response held by the {@link ResponseCache}, together with 
+ * its gzip and deflate encodings if it is worth compressing, so that 
+ * each is compressed once rather than per request.
+ * 
+ */
+public final class CachedResponse {
+
+  /**
+   * The header naming the next page, which is kept with the body.
+   */
+  static final String NEXT_CURSOR = "X-Next-Cursor";
+
+  private final String contentType;
+  private final String nextCursor;
+  private final byte[] body;
+  private final byte[] gzipped;
+  private final byte[] deflated;
+
+  CachedResponse(String contentType, byte[] body) {
+    this(contentType, null, body);
+  }
+
+  /**
+   * @param nextCursor the X-Next-Cursor header, null if there is none
+   */
+  CachedResponse(String contentType, String nextCursor, byte[] body) {
+    this.contentType = contentType;
+    this.nextCursor = nextCursor;
+    this.body = body;
+    if (body.length >= ContentEncoding.MIN_SIZE && ContentEncoding.isCompressible(contentType)) {
+      this.gzipped = ContentEncoding.compress(body, ContentEncoding.GZIP);
+      this.deflated = ContentEncoding.compress(body, ContentEncoding.DEFLATE);
+    } else {
+      this.gzipped = null;
+      this.deflated = null;
+    }
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return the bytes held, in all encodings
+   */
+  public int getSize() {
+    return body.length + (gzipped == null ? 0 : gzipped.length) + (deflated == null ? 0 : deflated.length);
+  }
+
+  /**
+   * Send the cached bytes as they are, without rendering or encoding.
+   */
+  public void writeTo(HttpServletResponse response) throws IOException {
+    writeTo(response, null);
+  }
+
+  /**
+   * Send the cached bytes in the negotiated encoding, where there is one.
+   * 
+   * @param encoding gzip, deflate or null for identity
+   */
+  public void writeTo(HttpServletResponse response, String encoding) throws IOException {
+    byte[] encoded = body;
+    if (ContentEncoding.GZIP.equals(encoding) && gzipped != null)
+      encoded = gzipped;
+    else if (ContentEncoding.DEFLATE.equals(encoding) && deflated != null)
+      encoded = deflated;
+    if (contentType != null)
+      response.setContentType(contentType);
+    if (nextCursor != null)
+      response.setHeader(NEXT_CURSOR, nextCursor);
+    if (encoded != body)
+      response.setHeader("Content-Encoding", encoding);
+    response.setContentLength(encoded.length);
+    response.getOutputStream().write(encoded);
+  }
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.Collection;
+
+import net.sf.gaboto.GabotoSnapshot;
+
+/**
+ * A snapshot as held by the {@link SnapshotCache}, together with the 
+ * version of the data directory it was built from.
+ * 
+ * A snapshot taken after a write updates the indexes its predecessor had 
+ * built for the entities written to, rather than building them again. 
+ * Indexes are never changed once built, so requests still using the 
+ * predecessor see it unchanged.
+ * 
+ */
+public final class CachedSnapshot {
+
+  private final String dataDirectory;
+  private final GabotoSnapshot snapshot;
+  private final long version;
+  private final AdjacencyIndex adjacencyIndex;
+  private final TypeIndex typeIndex;
+
+  private Collection<String> changedSubjects;
+  private CodeIndex previousCodeIndex;
+  private GeoIndex previousGeoIndex;
+  private SearchIndex previousSearchIndex;
+
+  private final Lazy<CodeIndex> codeIndex = new Lazy<CodeIndex>() {
+    @Override
+    protected CodeIndex build() {
+      CodeIndex built;
+      if (previousCodeIndex != null)
+        built = previousCodeIndex.update(snapshot, changedSubjects);
+      else
+        built = CodeIndex.build(snapshot);
+      previousCodeIndex = null;
+      return built;
+    }
+  };
+
+  private final Lazy<AutosuggestIndex> autosuggestIndex = new Lazy<AutosuggestIndex>() {
+    @Override
+    protected AutosuggestIndex build() {
+      return AutosuggestIndex.build(typeIndex.getAll());
+    }
+  };
+
+  private final Lazy<GeoIndex> geoIndex = new Lazy<GeoIndex>() {
+    @Override
+    protected GeoIndex build() {
+      GeoIndex built;
+      if (previousGeoIndex != null)
+        built = previousGeoIndex.update(snapshot, changedSubjects);
+      else
+        built = GeoIndex.build(snapshot);
+      previousGeoIndex = null;
+      return built;
+    }
+  };
+
+  private final Lazy<SearchIndex> searchIndex = new Lazy<SearchIndex>() {
+    @Override
+    protected SearchIndex build() {
+      SearchIndex built;
+      if (previousSearchIndex != null)
+        built = previousSearchIndex.update(snapshot, changedSubjects);
+      else
+        built = SearchIndex.build(snapshot);
+      previousSearchIndex = null;
+      return built;
+    }
+  };
+
+  CachedSnapshot(String dataDirectory, GabotoSnapshot snapshot, long version) {
+    this.dataDirectory = dataDirectory;
+    this.snapshot = snapshot;
+    this.version = version;
+    this.adjacencyIndex = new AdjacencyIndex(snapshot);
+    this.typeIndex = new TypeIndex(snapshot);
+  }
+
+  /**
+   * Only the indexes the previous snapshot had already built are carried 
+   * over, so no chain of predecessors is kept.
+   * 
+   * @param previous the snapshot this one replaces
+   * @param changedSubjects the entities written to since that snapshot
+   */
+  CachedSnapshot(String dataDirectory, GabotoSnapshot snapshot, long version, 
+      CachedSnapshot previous, Collection<String> changedSubjects) {
+    this.dataDirectory = dataDirectory;
+    this.snapshot = snapshot;
+    this.version = version;
+    this.changedSubjects = changedSubjects;
+    this.previousCodeIndex = previous.codeIndex.peek();
+    this.previousGeoIndex = previous.geoIndex.peek();
+    this.previousSearchIndex = previous.searchIndex.peek();
+    this.adjacencyIndex = previous.adjacencyIndex.update(snapshot, changedSubjects);
+    // Entities are bound to the snapshot they were loaded from
+    this.typeIndex = new TypeIndex(snapshot);
+  }
+
+  public String getDataDirectory() {
+    return dataDirectory;
+  }
+
+  public GabotoSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * @return the number of times the data directory had been written to 
+   *         when this snapshot was built
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public CodeIndex getCodeIndex() {
+    return codeIndex.get();
+  }
+
+  public AdjacencyIndex getAdjacencyIndex() {
+    return adjacencyIndex;
+  }
+
+  public TypeIndex getTypeIndex() {
+    return typeIndex;
+  }
+
+  public GeoIndex getGeoIndex() {
+    return geoIndex.get();
+  }
+
+  public SearchIndex getSearchIndex() {
+    return searchIndex.get();
+  }
+
+  public AutosuggestIndex getAutosuggestIndex() {
+    return autosuggestIndex.get();
+  }
+
+  /**
+   * Use indexes read from a {@link SnapshotImage} rather than building them.
+   */
+  void restore(CodeIndex codes, AdjacencyIndex adjacency, AutosuggestIndex autosuggest, GeoIndex geo, SearchIndex search) {
+    codeIndex.set(codes);
+    adjacencyIndex.adopt(adjacency);
+    autosuggestIndex.set(autosuggest);
+    geoIndex.set(geo);
+    searchIndex.set(search);
+  }
+
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Passes a response through to the client while keeping a copy of it 
+ * for the {@link ResponseCache}.
+ * 
+ * Only successful responses within the cache's entry size are kept, 
+ * with their content type and any next page cursor.
+ * 
+ */
+class CapturingResponse extends HttpServletResponseWrapper {
+
+  private final long maxSize;
+  private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+  private String contentType = null;
+  private String nextCursor = null;
+  private ServletOutputStream stream = null;
+  private PrintWriter writer = null;
+
+  CapturingResponse(HttpServletResponse response, long maxSize) {
+    super(response);
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public void setContentType(String type) {
+    contentType = type;
+    super.setContentType(type);
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    if (name.equalsIgnoreCase(CachedResponse.NEXT_CURSOR))
+      nextCursor = value;
+    super.setHeader(name, value);
+  }
+
+  @Override
+  public void setStatus(int sc) {
+    if (sc != SC_OK)
+      discard();
+    super.setStatus(sc);
+  }
+
+  @Deprecated
+  @Override
+  public void setStatus(int sc, String sm) {
+    if (sc != SC_OK)
+      discard();
+    super.setStatus(sc, sm);
+  }
+
+  @Override
+  public void sendError(int sc) throws IOException {
+    discard();
+    super.sendError(sc);
+  }
+
+  @Override
+  public void sendError(int sc, String msg) throws IOException {
+    discard();
+    super.sendError(sc, msg);
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    discard();
+    super.sendRedirect(location);
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (writer != null)
+      throw new IllegalStateException("getWriter() has already been called");
+    if (stream == null)
+      stream = new TeeOutputStream(super.getOutputStream());
+    return stream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (writer == null) {
+      if (stream != null)
+        throw new IllegalStateException("getOutputStream() has already been called");
+      writer = new PrintWriter(new OutputStreamWriter(
+          new TeeOutputStream(super.getOutputStream()), getCharacterEncoding()));
+    }
+    return writer;
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if (writer != null)
+      writer.flush();
+    super.flushBuffer();
+  }
+
+  /**
+   * Flush anything still buffered through to the client.
+   * 
+   * @return the captured response, or null if it should not be cached
+   */
+  CachedResponse finish() {
+    if (writer != null)
+      writer.flush();
+    if (captured == null)
+      return null;
+    return new CachedResponse(contentType, nextCursor, captured.toByteArray());
+  }
+
+  private void discard() {
+    captured = null;
+  }
+
+  private class TeeOutputStream extends ServletOutputStream {
+    private final ServletOutputStream out;
+
+    TeeOutputStream(ServletOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      if (captured != null) {
+        captured.write(b);
+        checkSize();
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      if (captured != null) {
+        captured.write(b, off, len);
+        checkSize();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+
+    private void checkSize() {
+      if (captured.size() > maxSize)
+        discard();
+    }
+  }
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.gaboto.GabotoSnapshot;
+
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+/**
+ * The entities of a snapshot by coding and code, eg hasOUCSCode and oucs.
+ * 
+ * Built with one pass over the model per coding, rather than one per 
+ * code looked up.
+ * 
+ */
+final class CodeIndex {
+
+  private final Map<String, Map<String, List<String>>> codings = 
+      new HashMap<String, Map<String, List<String>>>();
+
+  static CodeIndex build(GabotoSnapshot snapshot) {
+    CodeIndex index = new CodeIndex();
+    for (String coding : Query.getCodings()) {
+      Property property = Query.getPropertyFromAbbreviation(coding);
+      if (property == null)
+        throw new IllegalStateException("No property is mapped for the coding " + coding);
+      Map<String, List<String>> codes = new HashMap<String, List<String>>();
+      StmtIterator statements = snapshot.getModel().listStatements(null, property, (RDFNode)null);
+      try {
+        while (statements.hasNext()) {
+          Statement statement = statements.nextStatement();
+          if (!statement.getSubject().isURIResource() || !statement.getObject().isLiteral())
+            continue;
+          String code = ((Literal)statement.getObject()).getLexicalForm();
+          List<String> uris = codes.get(code);
+          if (uris == null) {
+            uris = new LinkedList<String>();
+            codes.put(code, uris);
+          }
+          if (!uris.contains(statement.getSubject().getURI()))
+            uris.add(statement.getSubject().getURI());
+        }
+      } finally {
+        statements.close();
+      }
+      index.codings.put(coding, codes);
+    }
+    return index;
+  }
+
+  /**
+   * @param snapshot the snapshot after the change
+   * @param uris the entities whose statements may have changed
+   * @return an index of the snapshot, with only the given entities' codes 
+   *         read again and the lists of other codes shared
+   */
+  CodeIndex update(GabotoSnapshot snapshot, Collection<String> uris) {
+    Set<String> changed = new HashSet<String>(uris);
+    CodeIndex index = new CodeIndex();
+    for (Map.Entry<String, Map<String, List<String>>> coding : codings.entrySet()) {
+      Map<String, List<String>> codes = new HashMap<String, List<String>>();
+      Set<String> copied = new HashSet<String>();
+      for (Map.Entry<String, List<String>> code : coding.getValue().entrySet()) {
+        List<String> entities = code.getValue();
+        if (!Collections.disjoint(entities, changed)) {
+          entities = new LinkedList<String>(entities);
+          entities.removeAll(changed);
+          copied.add(code.getKey());
+          if (entities.isEmpty())
+            continue;
+        }
+        codes.put(code.getKey(), entities);
+      }
+      Property property = Query.getPropertyFromAbbreviation(coding.getKey());
+      for (String uri : changed) {
+        StmtIterator statements = snapshot.getModel().listStatements(
+            ResourceFactory.createResource(uri), property, (RDFNode)null);
+        try {
+          while (statements.hasNext()) {
+            Statement statement = statements.nextStatement();
+            if (!statement.getObject().isLiteral())
+              continue;
+            String code = ((Literal)statement.getObject()).getLexicalForm();
+            List<String> entities = codes.get(code);
+            if (entities == null || copied.add(code)) {
+              entities = entities == null ? new LinkedList<String>() : new LinkedList<String>(entities);
+              copied.add(code);
+              codes.put(code, entities);
+            }
+            if (!entities.contains(uri))
+              entities.add(uri);
+          }
+        } finally {
+          statements.close();
+        }
+      }
+      index.codings.put(coding.getKey(), codes);
+    }
+    return index;
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    out.writeInt(codings.size());
+    for (Map.Entry<String, Map<String, List<String>>> coding : codings.entrySet()) {
+      out.writeUTF(coding.getKey());
+      out.writeInt(coding.getValue().size());
+      for (Map.Entry<String, List<String>> code : coding.getValue().entrySet()) {
+        out.writeUTF(code.getKey());
+        SnapshotImage.writeStrings(out, code.getValue());
+      }
+    }
+  }
+
+  static CodeIndex readFrom(DataInput in) throws IOException {
+    CodeIndex index = new CodeIndex();
+    for (int i = in.readInt(); i > 0; i--) {
+      String coding = in.readUTF();
+      Map<String, List<String>> codes = new HashMap<String, List<String>>();
+      for (int j = in.readInt(); j > 0; j--) {
+        String code = in.readUTF();
+        codes.put(code, new LinkedList<String>(SnapshotImage.readStrings(in)));
+      }
+      index.codings.put(coding, codes);
+    }
+    return index;
+  }
+
+  /**
+   * @param coding the abbreviated coding property, eg hasOLISCode
+   * @return the URIs of the entities with the code, empty if there are none
+   */
+  Collection<String> lookup(String coding, String code) {
+    Map<String, List<String>> codes = codings.get(coding);
+    if (codes == null)
+      return Collections.emptyList();
+    List<String> uris = codes.get(code);
+    if (uris == null)
+      return Collections.emptyList();
+    return Collections.unmodifiableList(uris);
+  }
+
+}
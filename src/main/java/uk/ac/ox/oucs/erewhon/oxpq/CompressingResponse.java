@@ -0,0 +1,234 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compresses a response as it is written.
+ * 
+ * Whether to compress is decided once {@link ContentEncoding#MIN_SIZE} 
+ * bytes have been written, or the response is flushed or finished, by 
+ * which time the content type is known, so that the renderers need not 
+ * know about compression.  This applies the same threshold as for 
+ * cached responses.
+ * 
+ */
+class CompressingResponse extends HttpServletResponseWrapper {
+
+  private final String encoding;
+  private CompressingOutputStream stream = null;
+  private PrintWriter writer = null;
+  private int contentLength = -1;
+
+  /**
+   * @param encoding the negotiated encoding, gzip or deflate
+   */
+  CompressingResponse(HttpServletResponse response, String encoding) {
+    super(response);
+    this.encoding = encoding;
+  }
+
+  /**
+   * The length is only known for an uncompressed response.
+   */
+  @Override
+  public void setContentLength(int len) {
+    contentLength = len;
+  }
+
+  /**
+   * Anything held back or compressed so far goes with the buffer, and 
+   * whether to compress is decided afresh for what is written next.
+   */
+  @Override
+  public void reset() {
+    super.reset();
+    contentLength = -1;
+    if (stream != null)
+      stream.discard();
+  }
+
+  @Override
+  public void resetBuffer() {
+    super.resetBuffer();
+    if (stream != null)
+      stream.discard();
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (writer != null)
+      throw new IllegalStateException("getWriter() has already been called");
+    if (stream == null)
+      stream = new CompressingOutputStream();
+    return stream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (writer == null) {
+      if (stream != null)
+        throw new IllegalStateException("getOutputStream() has already been called");
+      stream = new CompressingOutputStream();
+      writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+    }
+    return writer;
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if (writer != null)
+      writer.flush();
+    if (stream != null)
+      stream.commit();
+    super.flushBuffer();
+  }
+
+  /**
+   * Write the end of the compressed stream.
+   */
+  void finish() throws IOException {
+    if (writer != null)
+      writer.flush();
+    if (stream != null)
+      stream.finish();
+  }
+
+  private class CompressingOutputStream extends ServletOutputStream {
+    private OutputStream out = null;
+    private byte[] pending = new byte[ContentEncoding.MIN_SIZE];
+    private int count = 0;
+    private boolean finished = false;
+
+    /**
+     * Compress if the content is compressible and, as far as is known, 
+     * not too small to be worth it.
+     * 
+     * @param small whether the whole body is known to be under the threshold
+     */
+    private void decide(boolean small) throws IOException {
+      ServletOutputStream raw = CompressingResponse.super.getOutputStream();
+      if (!small && (contentLength == -1 || contentLength >= ContentEncoding.MIN_SIZE)
+          && ContentEncoding.isCompressible(getContentType())) {
+        setHeader("Content-Encoding", encoding);
+        out = ContentEncoding.wrap(raw, encoding);
+      } else {
+        if (contentLength != -1)
+          CompressingResponse.super.setContentLength(contentLength);
+        else if (small)
+          CompressingResponse.super.setContentLength(count);
+        out = raw;
+      }
+      out.write(pending, 0, count);
+      pending = null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (out == null) {
+        if (count < pending.length) {
+          pending[count++] = (byte) b;
+          return;
+        }
+        decide(false);
+      }
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len <= 0)
+        return;
+      if (out == null) {
+        if (count + len <= pending.length) {
+          System.arraycopy(b, off, pending, count, len);
+          count += len;
+          return;
+        }
+        decide(false);
+      }
+      out.write(b, off, len);
+    }
+
+    /**
+     * Fewer than {@link ContentEncoding#MIN_SIZE} bytes are held back 
+     * until the decision is made, as renderers flush their writers when 
+     * done and would otherwise force small bodies to be compressed.
+     */
+    @Override
+    public void flush() throws IOException {
+      if (out != null)
+        out.flush();
+    }
+
+    /**
+     * Committing the response fixes the headers, so the decision cannot 
+     * wait any longer.
+     */
+    void commit() throws IOException {
+      if (out == null && !finished)
+        decide(false);
+      flush();
+    }
+
+    void discard() {
+      out = null;
+      pending = new byte[ContentEncoding.MIN_SIZE];
+      count = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      finish();
+    }
+
+    void finish() throws IOException {
+      if (finished)
+        return;
+      finished = true;
+      if (out == null && count > 0)
+        decide(true);
+      if (out != null)
+        out.close();
+    }
+  }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Negotiation of gzip and deflate Content-Encoding.
+ * 
+ */
+final class ContentEncoding {
+
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  /**
+   * Responses smaller than this are not worth compressing.
+   */
+  static final int MIN_SIZE = 256;
+
+  private ContentEncoding() {}
+
+  /**
+   * gzip is preferred where the client accepts both, as some clients 
+   * expect raw deflate rather than zlib.  A coding named explicitly 
+   * takes its q-value from that entry, so <code>gzip;q=0, *</code> 
+   * refuses gzip; <code>*</code> only covers codings not otherwise 
+   * named (RFC 7231, section 5.3.4).
+   * 
+   * @return the encoding to use, or null for identity
+   */
+  static String negotiate(HttpServletRequest request) {
+    String header = request.getHeader("Accept-Encoding");
+    if (header == null)
+      return null;
+    double gzip = -1;
+    double deflate = -1;
+    double any = -1;
+    for (String coding : header.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase();
+      double q = quality(parts);
+      if (name.equals(GZIP) || name.equals("x-gzip"))
+        gzip = Math.max(gzip, q);
+      else if (name.equals(DEFLATE))
+        deflate = Math.max(deflate, q);
+      else if (name.equals("*"))
+        any = Math.max(any, q);
+    }
+    if (gzip == -1)
+      gzip = any;
+    if (deflate == -1)
+      deflate = any;
+    if (gzip > 0 && gzip >= deflate)
+      return GZIP;
+    return deflate > 0 ? DEFLATE : null;
+  }
+
+  /**
+   * @return the q-value of the coding, 1 if not given, or 0 if malformed
+   */
+  private static double quality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String param = parts[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          double q = Double.parseDouble(param.substring(2));
+          return q >= 0 && q <= 1 ? q : 0;
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Text compresses well; images and the like, such as some of the 
+   * GPSBabel formats, are already compressed or not worth trying.
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null)
+      return false;
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/") || type.contains("xml") || type.contains("json") 
+        || type.contains("javascript") || type.startsWith("application/x-oxpoints-sparql-rows");
+  }
+
+  static OutputStream wrap(OutputStream out, String encoding) throws IOException {
+    if (encoding.equals(GZIP))
+      return new GZIPOutputStream(out, 8192);
+    if (encoding.equals(DEFLATE))
+      return new DeflaterOutputStream(out);
+    throw new IllegalArgumentException("Unsupported encoding " + encoding);
+  }
+
+  static byte[] compress(byte[] body, String encoding) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+    try {
+      OutputStream out = wrap(compressed, encoding);
+      out.write(body);
+      out.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return compressed.toByteArray();
+  }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.List;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.node.GabotoEntity;
+import net.sf.gaboto.node.pool.EntityPool;
+
+import com.hp.hpl.jena.rdf.model.Property;
+
+/**
+ * Restricts a pool to the entities which have every one of some 
+ * properties and none of others, eg ?has=oxp:hasOUCSCode&amp;not=oxp:hasOLISCode.
+ * 
+ * All the conditions are checked for each entity in one pass over the 
+ * pool, which is left as it is.
+ * 
+ */
+final class EntityFilter {
+
+  private final Property[] required;
+  private final Property[] excluded;
+  private final boolean passive;
+  private final boolean indirect;
+
+  EntityFilter(List<Property> required, List<Property> excluded, boolean passive, boolean indirect) {
+    this.required = required.toArray(new Property[required.size()]);
+    this.excluded = excluded.toArray(new Property[excluded.size()]);
+    this.passive = passive;
+    this.indirect = indirect;
+  }
+
+  static EntityFilter from(Query query) {
+    return new EntityFilter(query.getHasProperties(), query.getNotProperties(), 
+        query.getSearchPassive(), query.getSearchIndirect());
+  }
+
+  boolean isEmpty() {
+    return required.length == 0 && excluded.length == 0;
+  }
+
+  boolean accepts(GabotoEntity entity) {
+    for (Property property : excluded)
+      if (entity.getPropertyValue(property, passive, indirect) != null)
+        return false;
+    for (Property property : required)
+      if (entity.getPropertyValue(property, passive, indirect) == null)
+        return false;
+    return true;
+  }
+
+  /**
+   * @return a new pool of the accepted entities
+   */
+  EntityPool filter(EntityPool pool, Gaboto gaboto, GabotoSnapshot snapshot) {
+    EntityPool filtered = new EntityPool(gaboto, snapshot);
+    for (GabotoEntity entity : pool.getEntities())
+      if (accepts(entity))
+        filtered.add(entity);
+    return filtered;
+  }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.node.GabotoEntity;
+import net.sf.gaboto.node.pool.EntityPool;
+
+import com.hp.hpl.jena.rdf.model.Property;
+
+/**
+ * Takes one page of a pool, in a stable order so that successive pages 
+ * neither repeat nor miss entities.
+ * 
+ */
+final class EntityPager {
+
+  private EntityPager() {}
+
+  /**
+   * @param orderBy the property to order by, then by URI; null for URI alone
+   * @param limit the most entities in the page, -1 for no limit
+   * @return a new pool of the page
+   */
+  static EntityPool page(EntityPool pool, final Property orderBy, int offset, int limit, 
+      Gaboto gaboto, GabotoSnapshot snapshot) {
+    Collection<GabotoEntity> entities = pool.getEntities();
+    GabotoEntity[] ordered = entities.toArray(new GabotoEntity[entities.size()]);
+    final String[] keys = new String[ordered.length];
+    Integer[] order = new Integer[ordered.length];
+    for (int i = 0; i < ordered.length; i++) {
+      order[i] = i;
+      if (orderBy != null) {
+        Object value = ordered[i].getPropertyValue(orderBy, false, false);
+        keys[i] = value == null ? null : value.toString();
+      }
+    }
+    final GabotoEntity[] unsorted = ordered;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        String keyA = keys[a], keyB = keys[b];
+        if (keyA != keyB) {
+          // Entities without the property go last
+          if (keyA == null)
+            return 1;
+          if (keyB == null)
+            return -1;
+          int byKey = keyA.compareTo(keyB);
+          if (byKey != 0)
+            return byKey;
+        }
+        return unsorted[a].getUri().compareTo(unsorted[b].getUri());
+      }
+    });
+
+    EntityPool page = new EntityPool(gaboto, snapshot);
+    int from = Math.min(offset, order.length);
+    int to = limit == -1 ? order.length : (int)Math.min((long)from + limit, order.length);
+    for (int i = from; i < to; i++)
+      page.addEntity(unsorted[order[i]]);
+    return page;
+  }
+
+}
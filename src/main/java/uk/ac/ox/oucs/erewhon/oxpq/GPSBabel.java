@@ -0,0 +1,235 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts between formats by piping through gpsbabel.
+ * 
+ * The input is written, and stdout and stderr read, concurrently, so 
+ * that neither side blocks on a full pipe, and the output is copied to 
+ * the destination as gpsbabel produces it. Only a limited number of 
+ * gpsbabel processes run at once, and each is killed if it has not 
+ * finished within a time limit, so that a hung process cannot keep its 
+ * permit and request thread for ever.
+ * 
+ */
+final class GPSBabel {
+
+  /**
+   * Writes the document to be converted.
+   */
+  interface Input {
+    void writeTo(OutputStream stdin) throws IOException;
+  }
+
+  private static final long PERMIT_TIMEOUT_SECONDS = 30;
+
+  private final String command;
+  private final Semaphore processes;
+  private final long timeoutSeconds;
+  private final ExecutorService pumps;
+  private final ScheduledExecutorService killer;
+
+  /**
+   * @param command the path to the gpsbabel executable
+   * @param maxProcesses the number of conversions which may run at once
+   * @param timeoutSeconds how long a conversion may run before it is killed
+   */
+  GPSBabel(String command, int maxProcesses, long timeoutSeconds) {
+    this.command = command;
+    this.processes = new Semaphore(maxProcesses, true);
+    this.timeoutSeconds = timeoutSeconds;
+    final AtomicInteger count = new AtomicInteger();
+    ThreadFactory threads = new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "oxpq-gpsbabel-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    this.pumps = Executors.newCachedThreadPool(threads);
+    this.killer = Executors.newSingleThreadScheduledExecutor(threads);
+  }
+
+  /**
+   * @param formatIn gpsbabel's name for the input format, normally kml
+   * @param formatOut what you want out
+   * @param input writes the document to convert
+   * @param out where to copy the converted document
+   * @return the number of bytes written
+   */
+  long convert(String formatIn, String formatOut, final Input input, OutputStream out) throws IOException {
+    // '/usr/bin/gpsbabel -i kml -o ' . $format . ' -f ' . $In . ' -F ' . $Out;
+    if (formatIn == null)
+      formatIn = "kml";
+    if (formatOut == null)
+      throw new IllegalArgumentException("Missing output format for GPSBabel");
+    checkFormat(formatIn);
+    checkFormat(formatOut);
+
+    acquire();
+    try {
+      Process process;
+      try {
+        process = new ProcessBuilder(command, "-i", formatIn, "-o", formatOut, "-f", "-", "-F", "-").start();
+      } catch (IOException e) {
+        throw new AnticipatedException("Not able to use GPSBabel to produce the desired output.", e, 501);
+      }
+      final Process running = process;
+      final AtomicBoolean killed = new AtomicBoolean();
+      // Destroying the process closes its pipes, which ends the copy below
+      Future<?> watchdog = killer.schedule(new Runnable() {
+        public void run() {
+          killed.set(true);
+          running.destroy();
+        }
+      }, timeoutSeconds, TimeUnit.SECONDS);
+      try {
+        final OutputStream stdin = process.getOutputStream();
+        Future<Object> feeding = pumps.submit(new Callable<Object>() {
+          public Object call() throws IOException {
+            try {
+              input.writeTo(stdin);
+            } finally {
+              stdin.close();
+            }
+            return null;
+          }
+        });
+        Future<String> errors = pumps.submit(drain(process.getErrorStream()));
+
+        long written;
+        int exitValue;
+        try {
+          written = copy(process.getInputStream(), out);
+          exitValue = process.waitFor();
+        } catch (IOException e) {
+          if (killed.get())
+            throw timedOut(formatOut);
+          throw e;
+        }
+        if (killed.get())
+          throw timedOut(formatOut);
+        String stderr = errors.get();
+        if (exitValue != 0 || written == 0)
+          throw new AnticipatedException("Command " + command + " -o " + formatOut + " gave error:\n" + stderr, 500);
+        if (stderr.length() > 0)
+          System.err.println("[Stderr] " + stderr);
+        // gpsbabel has succeeded, so any failure feeding it is ours
+        feeding.get();
+        return written;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException)
+          throw (RuntimeException)e.getCause();
+        throw new RuntimeException(e.getCause());
+      } finally {
+        watchdog.cancel(false);
+        process.destroy();
+      }
+    } finally {
+      processes.release();
+    }
+  }
+
+  private AnticipatedException timedOut(String formatOut) {
+    return new AnticipatedException("GPSBabel took longer than " + timeoutSeconds + "s to produce " + formatOut, 504);
+  }
+
+  void shutdown() {
+    killer.shutdownNow();
+    pumps.shutdownNow();
+  }
+
+  private void acquire() {
+    try {
+      if (!processes.tryAcquire(PERMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+        throw new AnticipatedException("Too many GPSBabel conversions are running, please try again later", 503);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Formats are passed as arguments, so must not look like options.
+   */
+  private static void checkFormat(String format) {
+    if (!format.matches("^[a-zA-Z0-9_]+$"))
+      throw new AnticipatedException("Unexpected format " + format, 400);
+  }
+
+  private static Callable<String> drain(final InputStream stream) {
+    return new Callable<String>() {
+      public String call() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copy(stream, bytes);
+        return new String(bytes.toByteArray(), "UTF-8");
+      }
+    };
+  }
+
+  private static long copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    long written = 0;
+    int read;
+    try {
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        written += read;
+      }
+    } finally {
+      in.close();
+    }
+    return written;
+  }
+
+}
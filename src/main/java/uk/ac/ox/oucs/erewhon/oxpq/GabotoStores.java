@@ -0,0 +1,77 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoFactory;
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.time.TimeInstant;
+
+/**
+ * The Gaboto store behind each data directory. 
+ * 
+ * Stores are read by {@link GabotoFactory} unless one has been registered 
+ * for the directory, as an in-memory store is for testing.
+ * 
+ */
+final class GabotoStores {
+
+  private static final Map<String, Gaboto> registered = new ConcurrentHashMap<String, Gaboto>();
+
+  private GabotoStores() {}
+
+  /**
+   * @param dataDirectory a name for the store, which need not exist as a directory
+   */
+  static void register(String dataDirectory, Gaboto gaboto) {
+    registered.put(dataDirectory, gaboto);
+  }
+
+  static void unregister(String dataDirectory) {
+    registered.remove(dataDirectory);
+  }
+
+  static Gaboto getGaboto(String dataDirectory) {
+    Gaboto gaboto = registered.get(dataDirectory);
+    return gaboto == null ? GabotoFactory.getGaboto(dataDirectory) : gaboto;
+  }
+
+  static GabotoSnapshot getSnapshot(String dataDirectory, TimeInstant instant) {
+    Gaboto gaboto = registered.get(dataDirectory);
+    return gaboto == null ? GabotoFactory.getSnapshot(dataDirectory, instant) : gaboto.getSnapshot(instant);
+  }
+
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.vocabulary.GeoVocab;
+
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+/**
+ * The entities of a snapshot which have a geo:lat and geo:long, bucketed 
+ * into a grid of cells of {@value #CELL_DEGREES} degrees so that only the 
+ * cells around a point or box need be examined.
+ * 
+ */
+final class GeoIndex {
+
+  static final double CELL_DEGREES = 0.01;
+  private static final double METRES_PER_DEGREE = 111320;
+
+  private final String[] uris;
+  private final double[] lats;
+  private final double[] longs;
+  private final Map<Long, int[]> cells;
+
+  private GeoIndex(String[] uris, double[] lats, double[] longs, Map<Long, int[]> cells) {
+    this.uris = uris;
+    this.lats = lats;
+    this.longs = longs;
+    this.cells = cells;
+  }
+
+  static GeoIndex build(GabotoSnapshot snapshot) {
+    Map<String, Double> lats = readCoordinates(snapshot, null, GeoVocab.lat);
+    Map<String, Double> longs = readCoordinates(snapshot, null, GeoVocab.long_);
+    List<String> located = new ArrayList<String>();
+    for (String uri : lats.keySet())
+      if (longs.containsKey(uri))
+        located.add(uri);
+
+    int size = located.size();
+    String[] uris = located.toArray(new String[size]);
+    double[] latArray = new double[size];
+    double[] longArray = new double[size];
+    for (int i = 0; i < size; i++) {
+      latArray[i] = lats.get(uris[i]);
+      longArray[i] = longs.get(uris[i]);
+    }
+    return create(uris, latArray, longArray);
+  }
+
+  private static GeoIndex create(String[] uris, double[] latArray, double[] longArray) {
+    Map<Long, List<Integer>> cellLists = new HashMap<Long, List<Integer>>();
+    for (int i = 0; i < uris.length; i++) {
+      Long key = cellKey(cell(latArray[i]), cell(longArray[i]));
+      List<Integer> members = cellLists.get(key);
+      if (members == null) {
+        members = new ArrayList<Integer>();
+        cellLists.put(key, members);
+      }
+      members.add(i);
+    }
+    Map<Long, int[]> cells = new HashMap<Long, int[]>();
+    for (Map.Entry<Long, List<Integer>> entry : cellLists.entrySet()) {
+      int[] members = new int[entry.getValue().size()];
+      for (int i = 0; i < members.length; i++)
+        members[i] = entry.getValue().get(i);
+      cells.put(entry.getKey(), members);
+    }
+    return new GeoIndex(uris, latArray, longArray, cells);
+  }
+
+  /**
+   * @param snapshot the snapshot after the change
+   * @param changed the entities whose statements may have changed
+   * @return an index of the snapshot, with only the given entities located again
+   */
+  GeoIndex update(GabotoSnapshot snapshot, Collection<String> changed) {
+    Set<String> changedUris = new HashSet<String>(changed);
+    List<String> located = new ArrayList<String>();
+    List<Double> latList = new ArrayList<Double>();
+    List<Double> longList = new ArrayList<Double>();
+    for (int i = 0; i < uris.length; i++) {
+      if (changedUris.contains(uris[i]))
+        continue;
+      located.add(uris[i]);
+      latList.add(lats[i]);
+      longList.add(longs[i]);
+    }
+    for (String uri : changedUris) {
+      Resource subject = ResourceFactory.createResource(uri);
+      Double lat = readCoordinates(snapshot, subject, GeoVocab.lat).get(uri);
+      Double lng = readCoordinates(snapshot, subject, GeoVocab.long_).get(uri);
+      if (lat == null || lng == null)
+        continue;
+      located.add(uri);
+      latList.add(lat);
+      longList.add(lng);
+    }
+    int size = located.size();
+    double[] latArray = new double[size];
+    double[] longArray = new double[size];
+    for (int i = 0; i < size; i++) {
+      latArray[i] = latList.get(i);
+      longArray[i] = longList.get(i);
+    }
+    return create(located.toArray(new String[size]), latArray, longArray);
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    out.writeInt(uris.length);
+    for (int i = 0; i < uris.length; i++) {
+      out.writeUTF(uris[i]);
+      out.writeDouble(lats[i]);
+      out.writeDouble(longs[i]);
+    }
+  }
+
+  static GeoIndex readFrom(DataInput in) throws IOException {
+    int size = in.readInt();
+    String[] uris = new String[size];
+    double[] lats = new double[size];
+    double[] longs = new double[size];
+    for (int i = 0; i < size; i++) {
+      uris[i] = in.readUTF();
+      lats[i] = in.readDouble();
+      longs[i] = in.readDouble();
+    }
+    return create(uris, lats, longs);
+  }
+
+  /**
+   * @param subject the entity to read, null for all
+   */
+  private static Map<String, Double> readCoordinates(GabotoSnapshot snapshot, Resource subject, Property property) {
+    Map<String, Double> coordinates = new HashMap<String, Double>();
+    StmtIterator statements = snapshot.getModel().listStatements(subject, property, (RDFNode)null);
+    try {
+      while (statements.hasNext()) {
+        Statement statement = statements.nextStatement();
+        if (!statement.getSubject().isURIResource() || !statement.getObject().isLiteral())
+          continue;
+        try {
+          coordinates.put(statement.getSubject().getURI(), 
+              Double.valueOf(((Literal)statement.getObject()).getLexicalForm().trim()));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+    } finally {
+      statements.close();
+    }
+    return coordinates;
+  }
+
+  private static int cell(double degrees) {
+    return (int)Math.floor(degrees / CELL_DEGREES);
+  }
+
+  private static Long cellKey(int latCell, int longCell) {
+    return Long.valueOf(((long)latCell << 32) | (longCell & 0xffffffffL));
+  }
+
+  /**
+   * @param radius in metres
+   * @param limit the most entities to return, -1 for no limit
+   * @return the URIs of the entities within radius of the point, nearest first
+   */
+  List<String> near(double lat, double lng, double radius, int limit) {
+    double latSpan = radius / METRES_PER_DEGREE;
+    double longSpan = radius / (METRES_PER_DEGREE * Math.max(Math.cos(Math.toRadians(lat)), 0.01));
+    final List<Integer> found = new ArrayList<Integer>();
+    final Map<Integer, Double> distances = new HashMap<Integer, Double>();
+    for (int i : candidates(lat - latSpan, lng - longSpan, lat + latSpan, lng + longSpan)) {
+      double distance = distance(lat, lng, lats[i], longs[i]);
+      if (distance <= radius) {
+        found.add(i);
+        distances.put(i, distance);
+      }
+    }
+    Integer[] ordered = found.toArray(new Integer[found.size()]);
+    Arrays.sort(ordered, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int byDistance = distances.get(a).compareTo(distances.get(b));
+        return byDistance != 0 ? byDistance : uris[a].compareTo(uris[b]);
+      }
+    });
+    int size = limit == -1 ? ordered.length : Math.min(limit, ordered.length);
+    List<String> nearest = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++)
+      nearest.add(uris[ordered[i]]);
+    return nearest;
+  }
+
+  /**
+   * @param limit the most entities to return, -1 for no limit
+   * @return the URIs of the entities within the box, in order, so that 
+   *         a limit always gives the same ones
+   */
+  List<String> within(double minLat, double minLong, double maxLat, double maxLong, int limit) {
+    List<String> found = new ArrayList<String>();
+    for (int i : candidates(minLat, minLong, maxLat, maxLong)) {
+      if (lats[i] >= minLat && lats[i] <= maxLat && longs[i] >= minLong && longs[i] <= maxLong)
+        found.add(uris[i]);
+    }
+    Collections.sort(found);
+    if (limit != -1 && found.size() > limit)
+      return new ArrayList<String>(found.subList(0, limit));
+    return found;
+  }
+
+  /**
+   * @return the entities in the cells overlapping the box
+   */
+  private List<Integer> candidates(double minLat, double minLong, double maxLat, double maxLong) {
+    List<Integer> candidates = new ArrayList<Integer>();
+    int minRow = cell(minLat), maxRow = cell(maxLat);
+    int minCol = cell(minLong), maxCol = cell(maxLong);
+    // A box bigger than the grid is quicker to check entity by entity; 
+    // each side is compared first so that the product cannot overflow
+    long rows = (long)maxRow - minRow + 1;
+    long cols = (long)maxCol - minCol + 1;
+    if (rows > cells.size() || cols > cells.size() || rows * cols > cells.size()) {
+      for (int i = 0; i < uris.length; i++)
+        candidates.add(i);
+      return candidates;
+    }
+    for (int row = minRow; row <= maxRow; row++)
+      for (int col = minCol; col <= maxCol; col++) {
+        int[] members = cells.get(cellKey(row, col));
+        if (members != null)
+          for (int i : members)
+            candidates.add(i);
+      }
+    return candidates;
+  }
+
+  /**
+   * @return the distance between two points in metres, by the haversine formula
+   */
+  static double distance(double lat1, double long1, double lat2, double long2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLong = Math.toRadians(long2 - long1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) 
+        + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLong / 2) * Math.sin(dLong / 2);
+    return 2 * 6371000 * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+}
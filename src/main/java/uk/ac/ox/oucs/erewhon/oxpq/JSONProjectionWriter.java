@@ -0,0 +1,122 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+
+import net.sf.gaboto.node.GabotoEntity;
+import net.sf.gaboto.node.pool.EntityPool;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import com.hp.hpl.jena.rdf.model.Property;
+
+/**
+ * Writes a pool as a JSON array of objects holding the URI and only the 
+ * requested properties of each entity, eg for ?fields=title,lat,long
+ * 
+ * Related entities are written as their URIs.
+ * 
+ */
+final class JSONProjectionWriter {
+
+  private final List<String> names;
+  private final List<Property> properties;
+  private final boolean passive;
+  private final boolean indirect;
+
+  /**
+   * @param names the keys to write each property under, as requested
+   */
+  JSONProjectionWriter(List<String> names, List<Property> properties, boolean passive, boolean indirect) {
+    this.names = names;
+    this.properties = properties;
+    this.passive = passive;
+    this.indirect = indirect;
+  }
+
+  void write(EntityPool pool, Writer out) throws IOException {
+    out.write("[");
+    boolean first = true;
+    for (GabotoEntity entity : pool.getEntities()) {
+      if (!first)
+        out.write(",");
+      else
+        first = false;
+      out.write("\n  {\"uri\": ");
+      writeString(entity.getUri(), out);
+      for (int i = 0; i < properties.size(); i++) {
+        Object value = entity.getPropertyValue(properties.get(i), passive, indirect);
+        if (value == null)
+          continue;
+        out.write(", ");
+        writeString(names.get(i), out);
+        out.write(": ");
+        writeValue(value, out);
+      }
+      out.write("}");
+    }
+    out.write("\n]");
+  }
+
+  private void writeValue(Object value, Writer out) throws IOException {
+    if (value instanceof GabotoEntity) {
+      writeString(((GabotoEntity) value).getUri(), out);
+    } else if (value instanceof Collection<?>) {
+      out.write("[");
+      boolean first = true;
+      for (Object member : (Collection<?>) value) {
+        if (!first)
+          out.write(", ");
+        else
+          first = false;
+        writeValue(member, out);
+      }
+      out.write("]");
+    } else if (value instanceof Number || value instanceof Boolean) {
+      out.write(value.toString());
+    } else {
+      writeString(value.toString(), out);
+    }
+  }
+
+  private static void writeString(String value, Writer out) throws IOException {
+    out.write('"');
+    out.write(StringEscapeUtils.escapeJava(value));
+    out.write('"');
+  }
+
+}
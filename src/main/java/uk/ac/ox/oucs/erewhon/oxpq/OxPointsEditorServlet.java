@@ -31,68 +31,96 @@
  */
 package uk.ac.ox.oucs.erewhon.oxpq;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.PrintWriter;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import net.sf.gaboto.time.TimeInstant;
+import net.sf.gaboto.Gaboto;
 
 
 public class OxPointsEditorServlet extends OxPointsServlet  {
 
   private static final long serialVersionUID = 3903309895476205922L;
 
-  
+  private static final int DEFAULT_INGEST_BATCH_SIZE = 500;
+
+  private int ingestBatchSize;
 
   public void init() {
     super.init();
+    ingestBatchSize = getIntInitParameter("ingestBatchSize", DEFAULT_INGEST_BATCH_SIZE);
   }
 
 
 
 
   /**
+   * Read RDF into the store, in the syntax given by the Content-Type: 
+   * RDF/XML, N-Triples, Turtle or N3.
+   * 
+   * The body is parsed as it arrives and read into Gaboto a batch of 
+   * entities at a time, so a large upload is never held whole, and a 
+   * line of progress is written as each batch is committed. 
+   * 
+   * As progress is streamed, the status is 200 once the first batch is 
+   * committed, and the last line says how the ingest ended: 
+   * <code>OK &lt;batches&gt; batches</code>, or 
+   * <code>ERROR &lt;status&gt; &lt;message&gt;</code> with the status 
+   * the request would have had. A body without either was cut short. 
+   * Batches committed before an error stay committed. An error before 
+   * any batch is committed is sent as the status itself: 400 or the like 
+   * for bad RDF, 500 for a failure of the store.
+   * 
    * @see javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
    */
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-    System.err.println("doPost");
-    
-    //Gaboto t = GabotoFactory.getEmptyInMemoryGaboto();
-    System.err.println("Entities:" + gaboto.getJenaModelViewOnNamedGraphSet().size());
-    String id = gaboto.generateIdUri(); 
-    System.err.println("We have " + gaboto.getJenaModelViewOnNamedGraphSet().size() +  " known entities before read");
-    BufferedReader is = new BufferedReader(new InputStreamReader(request.getInputStream()));
-    String line;
-    String lines = "";
-    while ((line = is.readLine()) != null) {
-      lines += line;
-      lines += " ";
+    String language = RDFIngest.getLanguage(request.getContentType());
+    if (language == null) {
+      response.sendError(415, "Unsupported RDF syntax " + request.getContentType());
+      return;
     }
-    System.err.println("Lines:" + lines + ":");
-    System.err.println("We have " + snapshot.size() + " entities in snapshot before read");
-    gaboto.read(lines);
-    System.err.println("We have " + gaboto.getJenaModelViewOnNamedGraphSet().size() +  " entities in gaboto after read");    
-    System.err.println("We have " + snapshot.size() + " entities in snapshot after read");
+    // Writes do not need a snapshot, so none is built or refreshed here
+    final String dataDirectory = getDataDirectory();
+    final Gaboto gaboto = GabotoStores.getGaboto(dataDirectory);
     
-    gaboto.recreateTimeDimensionIndex();
-    System.err.println("We have " + snapshot.size() + " entities in snapshot after index recreation");
-    snapshot = gaboto.getSnapshot(TimeInstant.from(startTime));
-    System.err.println("We have " + snapshot.size() + " entities in snapshot after refresh");
-    System.err.println("We have " + gaboto.getJenaModelViewOnNamedGraphSet().size() +  " entities in gaboto after read");
-    //for (Statement s in t.getSnapshot(t.getConfig().getContextDependantGraphURI()).getModel().listStatements() )
-    response.setStatus(201);
-    String successUrl = servletURL(request, "OxPQ") + "/id/44443610";// + gaboto.getCurrentHighestId();
-    System.err.println("servletURL:" + successUrl);
-    response.setHeader("Location", successUrl);
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("UTF-8");
+    final PrintWriter out = response.getWriter();
+    final int[] loaded = { 0 };
+    try {
+      int batches = new RDFIngest(ingestBatchSize).read(request.getInputStream(), language, new RDFIngest.Loader() {
+        public void load(RDFIngest.Batch batch) {
+          // The time dimension index and the snapshot indexes are brought up to 
+          // date once, when the next snapshot is built, rather than on every batch
+          synchronized (gaboto) {
+            gaboto.read(batch.getRdf());
+            dataChanged(dataDirectory, batch.getSubjects());
+          }
+          loaded[0]++;
+          out.println("Batch " + batch.getNumber() + ": " + batch.getEntities() + " entities, " 
+              + batch.getStatements() + " statements");
+          out.flush();
+        }
+      });
+      out.println("OK " + batches + " batches");
+      System.err.println("Read " + batches + " batches of " + language + " into " + dataDirectory);
+    } catch (RuntimeException e) {
+      int status = e instanceof AnticipatedException ? ((AnticipatedException)e).getHttpStatusCode() : 500;
+      if (loaded[0] == 0 && !response.isCommitted()) {
+        response.reset();
+        response.sendError(status, e.getMessage());
+        return;
+      }
+      out.println("ERROR " + status + " " + String.valueOf(e.getMessage()).replaceAll("\\s+", " "));
+      System.err.println("Ingest into " + dataDirectory + " failed after batch " + loaded[0] + ": " + e);
+    }
   }
 
-
-
   /**
    * @see javax.servlet.http.HttpServlet#doPut(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
    */
@@ -32,40 +32,46 @@
 package uk.ac.ox.oucs.erewhon.oxpq;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang.StringEscapeUtils;
 
-import uk.ac.ox.oucs.oxpoints.gaboto.entities.Organization;
-import uk.ac.ox.oucs.oxpoints.gaboto.entities.OxpEntity;
-import uk.ac.ox.oucs.oxpoints.gaboto.entities.Place;
 
 import net.sf.gaboto.EntityDoesNotExistException;
-import net.sf.gaboto.GabotoFactory;
 import net.sf.gaboto.GabotoSnapshot;
 import net.sf.gaboto.ResourceDoesNotExistException;
 import net.sf.gaboto.node.GabotoEntity;
 import net.sf.gaboto.node.pool.EntityPool;
-import net.sf.gaboto.node.pool.EntityPoolConfiguration;
 import net.sf.gaboto.query.GabotoQuery;
 import net.sf.gaboto.query.UnsupportedQueryFormatException;
-import net.sf.gaboto.time.TimeInstant;
 import net.sf.gaboto.transformation.EntityPoolTransformer;
 import net.sf.gaboto.transformation.GeoJSONPoolTransfomer;
 import net.sf.gaboto.transformation.JSONPoolTransformer;
@@ -73,6 +79,7 @@ import net.sf.gaboto.transformation.KMLPoolTransformer;
 import net.sf.gaboto.transformation.RDFPoolTransformerFactory;
 
 import com.hp.hpl.jena.query.QueryParseException;
+import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.Resource;
 
@@ -96,10 +103,177 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 
 	private static final long serialVersionUID = 4155078999145248554L;
 
-	private static String gpsbabelVersion = null;
+	private SPARQLExecutor sparqlExecutor = null;
+	private GPSBabel gpsbabel = null;
+	private int batchMaxItems;
+
+	private static final int DEFAULT_AUTOSUGGEST_LIMIT = 10;
+	private static final int DEFAULT_SEARCH_LIMIT = 20;
+
+	/** The properties traversed by the participant and transitive queries. */
+	private static final String[] WARMUP_ADJACENCY_PROPERTIES = 
+		{ "isPartOf", "occupies", "primaryPlace", "supplies", "downstreamOf" };
 
 	public void init() {
 		super.init();
+		sparqlExecutor = new SPARQLExecutor(
+				getIntInitParameter("sparqlThreads", 2), 
+				getIntInitParameter("sparqlQueueSize", 16), 
+				getIntInitParameter("sparqlTimeout", 30000), 
+				getIntInitParameter("sparqlMaxRows", 50000), 
+				getIntInitParameter("sparqlQueryCacheSize", 256));
+		String gpsbabelCommand = getServletConfig().getInitParameter("gpsbabel");
+		gpsbabel = new GPSBabel(gpsbabelCommand == null ? "/usr/bin/gpsbabel" : gpsbabelCommand, 
+				getIntInitParameter("gpsbabelProcesses", 2), getIntInitParameter("gpsbabelTimeout", 60));
+		batchMaxItems = getIntInitParameter("batchMaxItems", 10000);
+		warmUp();
+	}
+
+	/**
+	 * Load the store, build the default snapshot and its indexes, and 
+	 * render the paths given in the warmupPaths init-param into the 
+	 * response cache, so that the first requests after a deploy are not 
+	 * the slow ones. With load-on-startup the container does not serve 
+	 * requests until this returns.
+	 * 
+	 * The indexes are read from the {@link SnapshotImage} beside the 
+	 * datastore when it was saved from the same data, and saved to it 
+	 * otherwise, so that only the first start after a change builds them.
+	 * 
+	 * Failures are logged rather than preventing the servlet from starting.
+	 */
+	private void warmUp() {
+		if ("false".equals(getServletConfig().getInitParameter("warmup")))
+			return;
+		long started = System.currentTimeMillis();
+		final CachedSnapshot cached = createContext(null).getCachedSnapshot();
+		SnapshotImage image = null;
+		String fingerprint = null;
+		boolean restored = false;
+		if (cached.getVersion() == 0 && !"false".equals(getServletConfig().getInitParameter("snapshotImage"))) {
+			image = new SnapshotImage(cached.getDataDirectory());
+			fingerprint = SnapshotImage.fingerprint(cached.getDataDirectory());
+			restored = image.restore(cached, fingerprint);
+			if (restored)
+				System.err.println("Restored indexes from " + image.getFile());
+		}
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		tasks.add(new Callable<Object>() {
+			public Object call() {
+				return cached.getCodeIndex();
+			}
+		});
+		tasks.add(new Callable<Object>() {
+			public Object call() {
+				return cached.getAutosuggestIndex();
+			}
+		});
+		tasks.add(new Callable<Object>() {
+			public Object call() {
+				return cached.getSearchIndex();
+			}
+		});
+		tasks.add(new Callable<Object>() {
+			public Object call() {
+				return cached.getGeoIndex();
+			}
+		});
+		for (String name : WARMUP_ADJACENCY_PROPERTIES) {
+			final Property property = Query.getPropertyFromAbbreviation(name);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					cached.getAdjacencyIndex().index(property);
+					return property;
+				}
+			});
+		}
+		String paths = getServletConfig().getInitParameter("warmupPaths");
+		if (paths != null) {
+			for (final String path : paths.trim().split("\\s+")) {
+				if (path.length() == 0)
+					continue;
+				tasks.add(new Callable<Object>() {
+					public Object call() throws ResourceNotFoundException {
+						preRender(path);
+						return path;
+					}
+				});
+			}
+		}
+
+		ExecutorService warmers = Executors.newFixedThreadPool(getIntInitParameter("warmupThreads", 4));
+		try {
+			for (Future<Object> task : warmers.invokeAll(tasks)) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					System.err.println("Warm up failed: " + e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			warmers.shutdown();
+		}
+		if (image != null && !restored && snapshots.getVersion(cached.getDataDirectory()) == cached.getVersion()) {
+			try {
+				image.write(cached, fingerprint);
+			} catch (IOException e) {
+				System.err.println("Could not save " + image.getFile() + ": " + e);
+			}
+		}
+		System.err.println("Warmed up " + cached.getDataDirectory() + " in " 
+				+ (System.currentTimeMillis() - started) + "ms");
+	}
+
+	/**
+	 * Render a request into the response cache without a client.
+	 * 
+	 * @param path the path info and any query string, eg /type/College.kml?arc=oxp:occupies
+	 */
+	private void preRender(String path) throws ResourceNotFoundException {
+		int question = path.indexOf('?');
+		Map<String, String[]> parameters = parseQueryString(question == -1 ? "" : path.substring(question + 1));
+		Query query = Query.fromPath(question == -1 ? path : path.substring(0, question), parameters);
+		if (!isCacheable(query))
+			throw new IllegalArgumentException("Cannot render ahead of time: " + path);
+		RequestContext context = createContext(query);
+		BufferedResponse response = new BufferedResponse();
+		// Only SPARQL requests use the servlet request, and they are not cacheable
+		outputPool(context, null, response);
+		CachedResponse rendered = response.toCachedResponse();
+		if (rendered == null)
+			throw new RuntimeException("Rendering " + path + " gave status " + response.getStatus());
+		responses.put(context.getCacheKey(), rendered);
+	}
+
+	private static Map<String, String[]> parseQueryString(String queryString) {
+		Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+		for (String pair : queryString.split("&")) {
+			if (pair.length() == 0)
+				continue;
+			int equals = pair.indexOf('=');
+			try {
+				String name = URLDecoder.decode(equals == -1 ? pair : pair.substring(0, equals), "UTF-8");
+				String value = equals == -1 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+				if (!values.containsKey(name))
+					values.put(name, new ArrayList<String>());
+				values.get(name).add(value);
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		for (Map.Entry<String, List<String>> entry : values.entrySet())
+			parameters.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+		return parameters;
+	}
+
+	@Override
+	public void destroy() {
+		sparqlExecutor.shutdown();
+		gpsbabel.shutdown();
+		super.destroy();
 	}
 
 	@Override
@@ -110,12 +284,16 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 			outputPool(request, response);
 		} catch (ResourceNotFoundException e) {
 			try {
+				if (!response.isCommitted())
+					response.reset();
 				response.sendError(404, e.getMessage());
 			} catch (IOException e1) {
 				error(request, response, new AnticipatedException("Problem reporting error: " + e.getMessage(), e1, 500));
 			}
 		} catch (EntityDoesNotExistException e) {
 			try {
+				if (!response.isCommitted())
+					response.reset();
 				response.sendError(404, e.getMessage());
 			} catch (IOException e1) {
 				error(request, response, new AnticipatedException("Problem reporting error: " + e.getMessage(),e1, 500));
@@ -125,12 +303,211 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 		}
 	}
 
+	/**
+	 * Batch lookups, POSTed to /batch.json or /batch.nt with a body of 
+	 * entity specs separated by white space.
+	 */
+	@Override
+	public void doPost(HttpServletRequest request, HttpServletResponse response) {
+		response.setCharacterEncoding("UTF-8");
+		try {
+			if (request.getPathInfo() == null || !request.getPathInfo().startsWith("/batch."))
+				throw new AnticipatedException("Only /batch.json and /batch.nt accept POST", 405);
+			outputBatch(request, response);
+		} catch (AnticipatedException e) {
+			error(request, response, e);
+		}
+	}
+
+	/**
+	 * Resolve every spec against one snapshot and write them as a single 
+	 * document as they are found, marking those not found.
+	 */
+	private void outputBatch(HttpServletRequest request, HttpServletResponse response) {
+		String format = request.getPathInfo().substring("/batch.".length());
+		if (!format.equals("json") && !format.equals("nt"))
+			throw new AnticipatedException("Unexpected batch format " + format, 400);
+		RequestContext context = createContext(null);
+		BatchLookup lookup = new BatchLookup(context.getCachedSnapshot());
+		try {
+			Collection<String> specs = BatchLookup.readSpecs(new BufferedReader(request.getReader()), batchMaxItems);
+			PrintWriter writer = response.getWriter();
+			if (format.equals("json")) {
+				response.setContentType("application/json");
+				JSONPoolTransformer transformer = new JSONPoolTransformer();
+				writer.print("{\"items\": [");
+				boolean first = true;
+				for (String spec : specs) {
+					BatchLookup.Item item = lookup.resolve(spec);
+					if (!first)
+						writer.print(",");
+					else
+						first = false;
+					writer.print("\n  {\"spec\": \"" + StringEscapeUtils.escapeJava(spec) + "\", \"found\": " + item.isFound());
+					if (item.isFound()) {
+						writer.print(", \"entities\": ");
+						writer.print(transformer.transform(createPool(context, item)));
+					}
+					writer.print("}");
+				}
+				writer.println("\n]}");
+			} else {
+				response.setContentType("text/plain");
+				EntityPoolTransformer transformer = RDFPoolTransformerFactory.getRDFPoolTransformer(GabotoQuery.FORMAT_RDF_N_TRIPLE);
+				for (String spec : specs) {
+					BatchLookup.Item item = lookup.resolve(spec);
+					if (item.isFound())
+						writer.print(transformer.transform(createPool(context, item)));
+					else
+						writer.println("# Not found: " + spec);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedQueryFormatException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static EntityPool createPool(RequestContext context, BatchLookup.Item item) {
+		EntityPool pool = new EntityPool(context.getGaboto(), context.getSnapshot());
+		for (GabotoEntity entity : item.getEntities())
+			pool.addEntity(entity);
+		return pool;
+	}
+
 	void outputPool(HttpServletRequest request, HttpServletResponse response) throws ResourceNotFoundException {
 		Query query = Query.fromRequest(request);
-		if (query.getTimeInstant() == null)
-			snapshot = GabotoFactory.getSnapshot(dataDirectory, TimeInstant.from(startTime));
-		else 
-			snapshot = GabotoFactory.getSnapshot(dataDirectory, query.getTimeInstant());
+		RequestContext context = createContext(query);
+		long epoch = startTime.getTimeInMillis();
+		if (query.getCursorVersion() != -1 && (query.getCursorEpoch() != epoch 
+				|| query.getCursorVersion() != context.getCachedSnapshot().getVersion()))
+			throw new AnticipatedException("The data has changed since this cursor was issued, please start again", 410);
+		String encoding = ContentEncoding.negotiate(request);
+		response.addHeader("Vary", "Accept-Encoding");
+		String etag = null;
+		long lastModified = -1;
+		// SPARQL responses vary with the Accept header and are left unvalidated
+		if (query.getReturnType() != Query.ReturnType.SPARQL_QUERY) {
+			etag = getETag(context, encoding);
+			lastModified = getLastModified(context);
+			response = new ValidatingResponse(response, etag, lastModified);
+		}
+		// The ETag is only given with a successful response, so a client which has it has one
+		if (etag != null && matchesETag(request, etag)) {
+			notModified(response, etag, lastModified);
+			return;
+		}
+		CompressingResponse compressing = encoding == null ? null : new CompressingResponse(response, encoding);
+		try {
+			if (!isCacheable(query)) {
+				outputPool(context, request, compressing == null ? response : compressing);
+			} else {
+				String key = context.getCacheKey();
+				CachedResponse cached = responses.get(key);
+				if (cached != null) {
+					// Only successful responses are cached, so only they can be not modified since
+					if (etag != null && isNotModified(request, etag, lastModified)) {
+						notModified(response, etag, lastModified);
+						return;
+					}
+					cached.writeTo(response, encoding);
+					return;
+				}
+				CapturingResponse capture = new CapturingResponse(compressing == null ? response : compressing, 
+						responses.getMaxEntrySize());
+				outputPool(context, request, capture);
+				CachedResponse captured = capture.finish();
+				if (captured != null)
+					responses.put(key, captured);
+			}
+			if (compressing != null)
+				compressing.finish();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * A strong validator for the response to this request, which changes 
+	 * whenever the data is edited or the application restarted.
+	 */
+	private String getETag(RequestContext context, String encoding) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			digest.update((startTime.getTimeInMillis() + "\n" + context.getCacheKey()).getBytes("UTF-8"));
+			// Each encoding is a different entity, so needs its own strong validator
+			return "\"" + new BigInteger(1, digest.digest()).toString(16) + (encoding == null ? "" : "-" + encoding) + "\"";
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the later of the start time and the last edit, to the second
+	 */
+	private long getLastModified(RequestContext context) {
+		long lastModified = Math.max(startTime.getTimeInMillis(), snapshots.getLastModified(context.getDataDirectory()));
+		return lastModified - lastModified % 1000;
+	}
+
+	private static void notModified(HttpServletResponse response, String etag, long lastModified) {
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", lastModified);
+		response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	}
+
+	/**
+	 * @return whether If-None-Match names this ETag itself, rather than *
+	 */
+	private static boolean matchesETag(HttpServletRequest request, String etag) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch == null)
+			return false;
+		for (String candidate : ifNoneMatch.split(","))
+			if (candidate.trim().equals(etag))
+				return true;
+		return false;
+	}
+
+	/**
+	 * If-None-Match takes precedence over If-Modified-Since, as in RFC 2616.
+	 */
+	private boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.equals("*") || candidate.equals(etag))
+					return true;
+			}
+			return false;
+		}
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+	}
+
+	/**
+	 * Responses are a function of the request and the snapshot, except for 
+	 * SPARQL queries, which are too varied to be worth keeping, and the 
+	 * timestamp, which is cheaper to write than to look up.
+	 */
+	private boolean isCacheable(Query query) {
+		return query.getReturnType() != Query.ReturnType.SPARQL_QUERY 
+				&& query.getReturnType() != Query.ReturnType.META_TIMESTAMP;
+	}
+
+	private void outputPool(RequestContext context, HttpServletRequest request, HttpServletResponse response) 
+			throws ResourceNotFoundException {
+		Query query = context.getQuery();
+		GabotoSnapshot snapshot = context.getSnapshot();
 		//System.err.println("Snapshot " + snapshot + " contains " + snapshot.size() + " entities ");
 
 
@@ -150,75 +527,77 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 			}
 			return;
 		case META_TYPES:
-			output(snapshot.getGaboto().getConfig().getGabotoOntologyLookup().getRegisteredEntityClassesAsClassNames(), query, response);
+			output(context, snapshot.getGaboto().getConfig().getGabotoOntologyLookup().getRegisteredEntityClassesAsClassNames(), response);
 			return;
 		case ALL:
-			output(EntityPool.createFrom(snapshot), query, response);
+			output(context, context.getCachedSnapshot().getTypeIndex().getAll(), response);
 			return;
 		case INDIVIDUAL:
-			EntityPool pool = new EntityPool(gaboto, snapshot);
-			establishParticipantURIs(query);
+			EntityPool pool = new EntityPool(context.getGaboto(), snapshot);
+			establishParticipantURIs(context);
 			if (snapshot != null)
 				System.err.println("We have " + snapshot.size() + " entities in snapshot before loadEntity");
 			for (String participantURI : query.getParticipantURIs())
 				pool.addEntity(snapshot.loadEntity(participantURI));
-			output(pool, query, response);
+			output(context, pool, response);
 			return;
 		case TYPE_COLLECTION:
-			output(loadPoolWithEntitiesOfType(query.getType()), query, response);
+			output(context, loadPoolWithEntitiesOfType(context, query.getType()), response);
 			return;
 		case PROPERTY_ANY: // value null
-			output(loadPoolWithEntitiesOfProperty(query.getRequestedProperty(), query.getRequestedPropertyValue()), query,
+			output(context, loadPoolWithEntitiesOfProperty(context, query.getRequestedProperty(), query.getRequestedPropertyValue()),
 					response);
 			return;
 		case PROPERTY_SUBJECT:
 			EntityPool subjectPool = null;
 			if (requiresResource(query.getRequestedProperty())) {
-				establishParticipantURIs(query);
-
-				Set<GabotoEntity> objects = new HashSet<GabotoEntity>();
-				EntityPool creationPool = EntityPool.createFrom(snapshot);
-				for (String uri : query.getParticipantURIs()) {
-					GabotoEntity object = snapshot.loadEntity(uri);
-					object.setCreatedFromPool(creationPool);
-					objects.add(object);
-				}
-				subjectPool = loadPoolWithActiveParticipants(objects, query.getRequestedProperty()); 
+				establishParticipantURIs(context);
+				subjectPool = loadPoolWithActiveParticipants(context, query.getParticipantURIs(), query.getRequestedProperty()); 
 			} else { 
-				subjectPool = loadPoolWithEntitiesOfProperty(query.getRequestedProperty(), query.getRequestedPropertyValue());         
+				subjectPool = loadPoolWithEntitiesOfProperty(context, query.getRequestedProperty(), query.getRequestedPropertyValue());         
 			}
-			output(subjectPool, query, response);
+			output(context, subjectPool, response);
 			return;
 		case PROPERTY_OBJECT: 
-			establishParticipantURIs(query);
-			Set<GabotoEntity> subjects = new HashSet<GabotoEntity>();
-			for (String uri : query.getParticipantURIs()) {
-				GabotoEntity object = snapshot.loadEntity(uri);
-				subjects.add(object);
-			}
-
-			EntityPool objectPool = loadPoolWithPassiveParticipants(subjects, query.getRequestedProperty());
-			output(objectPool, query, response);
+			establishParticipantURIs(context);
+			EntityPool objectPool = loadPoolWithPassiveParticipants(context, query.getParticipantURIs(), query.getRequestedProperty());
+			output(context, objectPool, response);
 			return;
-		case NOT_FILTERED_TYPE_COLLECTION:
-			EntityPool p = loadPoolWithEntitiesOfType(query.getType());
-			EntityPool p2 = loadPoolWithEntitiesOfType(query.getType());
-			for (GabotoEntity e : p.getEntities()) 
-				if (e.getPropertyValue(query.getNotProperty(), query.getSearchPassive(), query.getSearchIndirect()) != null)
-					p2.removeEntity(e);
-
-			output(p2, query,
-					response);
+		case PROPERTY_SUBJECT_TRANSITIVE:
+			establishParticipantURIs(context);
+			checkParticipantsExist(context, query.getParticipantURIs());
+			output(context, loadPool(context, context.getCachedSnapshot().getAdjacencyIndex().getSubjectClosure(
+					query.getParticipantURIs(), query.getRequestedProperty(), query.getDepth())), response);
+			return;
+		case PROPERTY_OBJECT_TRANSITIVE:
+			establishParticipantURIs(context);
+			checkParticipantsExist(context, query.getParticipantURIs());
+			output(context, loadPool(context, context.getCachedSnapshot().getAdjacencyIndex().getObjectClosure(
+					query.getParticipantURIs(), query.getRequestedProperty(), query.getDepth())), response);
+			return;
+		case SEARCH:
+			output(context, loadPool(context, context.getCachedSnapshot().getSearchIndex().search(query.getSearchTerms(), 
+					query.getOffset(), query.getLimit() == -1 ? DEFAULT_SEARCH_LIMIT : query.getLimit())), response);
+			return;
+		case NEAR:
+			double[] point = query.getCoordinates();
+			output(context, loadFilteredPool(context, context.getCachedSnapshot().getGeoIndex().near(
+					point[0], point[1], query.getRadius(), -1)), response);
+			return;
+		case BOUNDING_BOX:
+			double[] box = query.getCoordinates();
+			output(context, loadFilteredPool(context, context.getCachedSnapshot().getGeoIndex().within(
+					box[0], box[1], box[2], box[3], -1)), response);
 			return;
 		case SPARQL_QUERY:
-			PrintWriter writer;
-			try {
-				writer = response.getWriter();
-			} catch (IOException e1) {
-				throw new RuntimeException("Couldn't write to stream");
-			}
-			
 			if (query.getFormat().equals("html") || query.getSparqlQuery() == null) {
+				PrintWriter writer;
+				try {
+					writer = response.getWriter();
+				} catch (IOException e1) {
+					throw new RuntimeException("Couldn't write to stream");
+				}
+				response.setContentType("application/xhtml+xml");
 				writer.println("<?xml version=\"1.0\"?>");
 				writer.println("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">");
 				writer.println("<html xmlns=\"http://www.w3.org/1999/xhtml\" xml:lang=\"en\">\n  <head>");
@@ -227,11 +606,22 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 				if (query.getSparqlQuery() != null) {
 					writer.println("    <h2>Results</h2>");
 					writer.print("    <div class=\"results\" style=\"border:1px solid #888; padding:5px; font-size:10pt; max-height:400px; overflow:auto;\"><pre style=\"margin:0;\">");
+					final Writer escapingWriter = new HtmlEscapingWriter(writer);
 					try {
-						writer.write(StringEscapeUtils.escapeHtml(SPARQLQueryResultProcessor.performQuery(snapshot.getModel(), query.getSparqlQuery())));
+						sparqlExecutor.execute(snapshot.getModel(), sparqlExecutor.parse(query.getSparqlQuery()), 
+								new SPARQLExecutor.ResultsWriter() {
+									public void write(ResultSet results) throws IOException {
+										SPARQLQueryResultProcessor.writeResults(results, escapingWriter);
+									}
+								});
 					} catch (QueryParseException e) {
 						writer.write("ERROR: " + e.getMessage());
 						response.setStatus(400);
+					} catch (AnticipatedException e) {
+						writer.write("ERROR: " + e.getMessage());
+						response.setStatus(e.getHttpStatusCode());
+					} catch (IOException e) {
+						throw new RuntimeException(e);
 					}
 					writer.println("</pre></div>");
 				}
@@ -248,11 +638,13 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 				writer.println("    <form method=\"GET\" action=\"sparql.html\">");
 				writer.println("      <textarea name=\"query\" rows=\"10\" cols=\"80\">"+StringEscapeUtils.escapeHtml(sparqlQuery)+"</textarea>");
 				writer.println("      <p><input type=\"submit\"/></p>");
-				writer.println("    </form>\n  </body>\n</html>");
-				response.setContentType("application/xhtml+xml");
+				writer.println("    </form>");
+				writer.println("    <p>Parsed query cache: " + sparqlExecutor.getQueryCache().getHits() + " hits, " 
+						+ sparqlExecutor.getQueryCache().getMisses() + " misses</p>");
+				writer.println("  </body>\n</html>");
 				
 			} else
-				outputSparqlResults(response, writer, snapshot, query.getSparqlQuery());
+				outputSparqlResults(request, response, snapshot, query);
 
 				
 			return;
@@ -262,94 +654,118 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 
 	}
 
-	private void outputSparqlResults(HttpServletResponse response, PrintWriter writer, GabotoSnapshot snapshot, String sparqlQuery) {
+	/**
+	 * The results format is taken from the extension if there is one, 
+	 * otherwise from the Accept header, defaulting to SPARQL XML.
+	 */
+	private void outputSparqlResults(HttpServletRequest request, HttpServletResponse response, GabotoSnapshot snapshot, Query query) {
+		SPARQLResultsFormat requested;
+		if (query.isFormatSpecified())
+			requested = SPARQLResultsFormat.fromExtension(query.getFormat());
+		else {
+			requested = SPARQLResultsFormat.fromAccept(request.getHeader("Accept"));
+			response.addHeader("Vary", "Accept");
+		}
+		final SPARQLResultsFormat format = requested == null ? SPARQLResultsFormat.XML : requested;
+
+		com.hp.hpl.jena.query.Query parsedQuery;
 		try {
-			writer.write(SPARQLQueryResultProcessor.performQuery(snapshot.getModel(), sparqlQuery));
-			if (response != null)
-				response.setContentType("text/xml");
+			parsedQuery = sparqlExecutor.parse(query.getSparqlQuery());
 		} catch (QueryParseException e) {
-			writer.write(e.getMessage());
-			if (response != null) {
-				response.setStatus(400);
-				response.setContentType("text/plain");
+			response.setStatus(400);
+			response.setContentType("text/plain");
+			try {
+				response.getWriter().write(e.getMessage());
+			} catch (IOException e1) {
+				throw new RuntimeException(e1);
 			}
+			return;
+		}
+		// Set before the results start to commit the response
+		response.setContentType(format.getContentType());
+		final OutputStream out;
+		try {
+			out = response.getOutputStream();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		try {
+			sparqlExecutor.execute(snapshot.getModel(), parsedQuery, new SPARQLExecutor.ResultsWriter() {
+				public void write(ResultSet results) throws IOException {
+					format.write(results, out);
+				}
+			});
+		} catch (AnticipatedException e) {
+			sendStreamError(response, out, e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
-	private EntityPool loadPoolWithEntitiesOfProperty(Property prop, String value) {
+	/**
+	 * Report a failure, such as a full queue or a timeout, once the output 
+	 * stream has been opened, so that error() could not get the writer. 
+	 * 
+	 * The status and a plain text message replace anything not yet sent; 
+	 * once the response is committed the status cannot change, and the 
+	 * body is left to end where it stopped rather than have an error page 
+	 * appended to it.
+	 */
+	private static void sendStreamError(HttpServletResponse response, OutputStream out, AnticipatedException e) {
+		System.err.println("Failed after the response was started: " + e.getMessage());
+		if (response.isCommitted())
+			return;
+		response.reset();
+		response.setStatus(e.getHttpStatusCode());
+		response.setContentType("text/plain; charset=UTF-8");
+		try {
+			out.write((e.getMessage() + "\n").getBytes("UTF-8"));
+		} catch (IOException e1) {
+			throw new RuntimeException(e1);
+		}
+	}
+
+	private EntityPool loadPoolWithEntitiesOfProperty(RequestContext context, Property prop, String value) {
 		if (prop == null)
 			throw new NullPointerException();
+		GabotoSnapshot snapshot = context.getSnapshot();
 		EntityPool pool = null;
 		if (value == null) {
 			pool = snapshot.loadEntitiesWithProperty(prop);
+		} else if (requiresResource(prop)) {
+			Collection<String> objects = new LinkedHashSet<String>();
+			for (String v : value.split("[|]"))
+				objects.add(getResource(context, v).getURI());
+			pool = loadPool(context, context.getCachedSnapshot().getAdjacencyIndex().getSubjects(objects, prop));
 		} else {
-			String values[] = value.split("[|]");
-			for (String v : values) {
-				if (requiresResource(prop)) {
-					Resource r = getResource(v);
-					pool = becomeOrAdd(pool, snapshot.loadEntitiesWithProperty(prop, r));
-				} else {
-					pool = becomeOrAdd(pool, snapshot.loadEntitiesWithProperty(prop, v));
-				}
-			}
+			for (String v : value.split("[|]"))
+				pool = becomeOrAdd(pool, snapshot.loadEntitiesWithProperty(prop, v));
 		}
 		return pool;
 	}
 
-	private EntityPool loadPoolWithActiveParticipants(GabotoEntity passiveParticipant, Property prop) {
-		Set<GabotoEntity> passiveParticipants = new HashSet<GabotoEntity>();
-		passiveParticipants.add(passiveParticipant);
-		return loadPoolWithActiveParticipants(passiveParticipants, prop);
-	}
-
-	@SuppressWarnings("unchecked")
-	private EntityPool loadPoolWithActiveParticipants(Collection<GabotoEntity> passiveParticipants, Property prop) { 
+	/**
+	 * @param passiveParticipants the URIs of the entities pointed to
+	 * @return the entities pointing to any of them with the property 
+	 */
+	private EntityPool loadPoolWithActiveParticipants(RequestContext context, Collection<String> passiveParticipants, Property prop) { 
 		if (prop == null)
 			throw new NullPointerException();
-		EntityPool pool = new EntityPool(gaboto, snapshot);
-		//System.err.println("loadPoolWithActiveParticipants" + passiveParticipant.getUri() + "  prop " + prop + " which ");
-		for (GabotoEntity passiveParticipant : passiveParticipants) {
-		Set<Entry<String, Object>> passiveProperties = passiveParticipant.getAllPassiveProperties().entrySet(); 
-		for (Entry<String, Object> entry : passiveProperties) {
-			if (entry.getKey().equals(prop.getURI())) {
-				if (entry.getValue() != null) {
-					if (entry.getValue() instanceof HashSet) { 
-						HashSet<Object> them = (HashSet<Object>)entry.getValue(); 
-						for (Object e : them) { 
-							if (e instanceof GabotoEntity) {
-								pool.add((GabotoEntity)e);
-							}
-						}
-					} else if (entry.getValue() instanceof GabotoEntity) { 
-						pool.add((GabotoEntity)entry.getValue());            
-					} else { 
-						System.err.println("Ignoring:" + entry.getKey());
-					}
-				} else { 
-					System.err.println("Ignoring:" + entry.getKey());
-				}
-			} else { 
-				System.err.println("Ignoring:" + entry.getKey());
-			}
-		}
-		}
-		return pool;
+		checkParticipantsExist(context, passiveParticipants);
+		return loadPool(context, context.getCachedSnapshot().getAdjacencyIndex().getSubjects(passiveParticipants, prop));
 	}
 
-	private void establishParticipantURIs(Query query) throws ResourceNotFoundException { 
+	private void establishParticipantURIs(RequestContext context) throws ResourceNotFoundException { 
+		Query query = context.getQuery();
 		if (query.needsCodeLookup()) {
-			Property coding = Query.getPropertyFromAbbreviation(query.getParticipantCoding());
+			CodeIndex codes = context.getCachedSnapshot().getCodeIndex();
 			Collection<String> uris = new HashSet<String>();
 
 			for (String participantCode : query.getParticipantCodes()) {
-				EntityPool objectPool = snapshot.loadEntitiesWithProperty(coding, participantCode);
-				boolean found = false;
-				for (GabotoEntity objectKey: objectPool) { 
-					if (found)
-						throw new RuntimeException("Found two:" + objectKey);
-					uris.add(objectKey.getUri());
-					found = true;
-				}
+				Collection<String> found = codes.lookup(query.getParticipantCoding(), participantCode);
+				if (found.size() > 1)
+					throw new RuntimeException("Found two:" + found);
+				uris.addAll(found);
 			}
 			query.setParticipantURIs(uris);
 		}
@@ -357,41 +773,65 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 			throw new ResourceNotFoundException("No resource found with coding " + query.getParticipantCoding() + 
 					" and value " + query.getParticipantCodes().toString());
 	}
-	private EntityPool loadPoolWithPassiveParticipants(GabotoEntity activeParticipant, Property prop) {
-		Set<GabotoEntity> activeParticipants = new HashSet<GabotoEntity>();
-		activeParticipants.add(activeParticipant);
-		return loadPoolWithPassiveParticipants(activeParticipants, prop);
-	}
-	@SuppressWarnings("unchecked")
-	private EntityPool loadPoolWithPassiveParticipants(Collection<GabotoEntity> activeParticipants, Property prop) { 
+	/**
+	 * @param activeParticipants the URIs of the entities pointing
+	 * @return the entities any of them point to with the property 
+	 */
+	private EntityPool loadPoolWithPassiveParticipants(RequestContext context, Collection<String> activeParticipants, Property prop) { 
 		if (prop == null)
 			throw new NullPointerException();
-		EntityPool pool = new EntityPool(gaboto, snapshot);
-		
-		for (GabotoEntity activeParticipant : activeParticipants) {
-		Set<Entry<String, Object>> directProperties = activeParticipant.getAllDirectProperties().entrySet(); 
-		for (Entry<String, Object> entry : directProperties) {
-			if (entry.getKey().equals(prop.getURI())) {
-				if (entry.getValue() != null) {
-					if (entry.getValue() instanceof HashSet) { 
-						HashSet<Object> them = (HashSet<Object>)entry.getValue(); 
-						for (Object e : them) { 
-							if (e instanceof GabotoEntity) {
-								pool.add((GabotoEntity)e);
-							}
-						}
-					} else if (entry.getValue() instanceof GabotoEntity) { 
-						pool.add((GabotoEntity)entry.getValue());            
-					} else { 
-						System.err.println("Ignoring:" + entry.getKey());
-					}
-				} else { 
-					System.err.println("Ignoring:" + entry.getKey());
-				}
-			} else { 
-				System.err.println("Ignoring:" + entry.getKey());
+		checkParticipantsExist(context, activeParticipants);
+		return loadPool(context, context.getCachedSnapshot().getAdjacencyIndex().getObjects(activeParticipants, prop));
+	}
+
+	/**
+	 * Throw EntityDoesNotExistException, and so 404, for an unknown participant.
+	 */
+	private void checkParticipantsExist(RequestContext context, Collection<String> uris) {
+		for (String uri : uris)
+			context.getSnapshot().loadEntity(uri);
+	}
+
+	/**
+	 * @param uris the URIs found by traversal, which are skipped unless entities
+	 */
+	private EntityPool loadPool(RequestContext context, Collection<String> uris) {
+		GabotoSnapshot snapshot = context.getSnapshot();
+		EntityPool pool = new EntityPool(context.getGaboto(), snapshot);
+		for (String uri : uris) {
+			try {
+				pool.add(snapshot.loadEntity(uri));
+			} catch (EntityDoesNotExistException e) {
+				continue;
 			}
 		}
+		return pool;
+	}
+
+	/**
+	 * Load the entities in order, leaving out those which has= and not= 
+	 * reject, until there are as many as the limit, so that filtering 
+	 * does not leave fewer.
+	 */
+	private EntityPool loadFilteredPool(RequestContext context, Collection<String> uris) {
+		Query query = context.getQuery();
+		EntityFilter filter = EntityFilter.from(query);
+		GabotoSnapshot snapshot = context.getSnapshot();
+		EntityPool pool = new EntityPool(context.getGaboto(), snapshot);
+		int size = 0;
+		for (String uri : uris) {
+			if (query.getLimit() != -1 && size == query.getLimit())
+				break;
+			GabotoEntity entity;
+			try {
+				entity = snapshot.loadEntity(uri);
+			} catch (EntityDoesNotExistException e) {
+				continue;
+			}
+			if (filter.isEmpty() || filter.accepts(entity)) {
+				pool.add(entity);
+				size++;
+			}
 		}
 		return pool;
 	}
@@ -409,45 +849,60 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 		}
 	}
 
-	private Resource getResource(String v) {
+	private Resource getResource(RequestContext context, String v) {
 		String vUri = v;
 		if (!vUri.startsWith(config.getNSData()))
 			vUri = config.getNSData() + v;
 		try {
-			return snapshot.getResource(vUri);
+			return context.getSnapshot().getResource(vUri);
 		} catch (ResourceDoesNotExistException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Whether the values of a property are entities, so that what has a 
+	 * value can be found in the adjacency index.
+	 */
 	private boolean requiresResource(Property property) {
 		if (property.getLocalName().endsWith("isPartOf")) {
 			return true;
 		} else if (property.getLocalName().endsWith("hasPrimaryPlace")) {
 			return true;
+		} else if (property.getLocalName().endsWith("primaryPlace")) {
+			return true;
 		} else if (property.getLocalName().endsWith("occupies")) {
 			return true;
 		} else if (property.getLocalName().endsWith("associatedWith")) {
 			return true;
+		} else if (property.getLocalName().endsWith("member")) {
+			return true;
+		} else if (property.getLocalName().endsWith("subsetOf")) {
+			return true;
+		} else if (property.getLocalName().endsWith("supplies")) {
+			return true;
+		} else if (property.getLocalName().endsWith("downstreamOf")) {
+			return true;
 		}
 		return false;
 	}
 
-	private EntityPool loadPoolWithEntitiesOfType(String type) {
+	private EntityPool loadPoolWithEntitiesOfType(RequestContext context, String type) {
 		String types[] = type.split("[|]");
+		GabotoSnapshot snapshot = context.getSnapshot();
 
-		EntityPoolConfiguration conf = new EntityPoolConfiguration(snapshot);
+		Collection<String> typeURIs = new LinkedHashSet<String>();
 		for (String t : types) {
 			if (!snapshot.getGaboto().getConfig().getGabotoOntologyLookup().isValidName(t))
 				throw new IllegalArgumentException("Found no URI matching type " + t);
-			String typeURI = snapshot.getGaboto().getConfig().getGabotoOntologyLookup().getURIForName(t);
-			conf.addAcceptedType(typeURI);
+			typeURIs.add(snapshot.getGaboto().getConfig().getGabotoOntologyLookup().getURIForName(t));
 		}
 
-		return EntityPool.createFrom(conf);
+		return context.getCachedSnapshot().getTypeIndex().get(typeURIs);
 	}
 
-	private void output(Collection<String> them, Query query, HttpServletResponse response) {
+	private void output(RequestContext context, Collection<String> them, HttpServletResponse response) {
+		Query query = context.getQuery();
 		try {
 			if (query.getFormat().equals("txt")) {
 				boolean doneOne = false;
@@ -495,23 +950,58 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 		}
 	}
 
-	private void output(EntityPool pool, Query query, HttpServletResponse response) {
+	private void output(RequestContext context, EntityPool pool, HttpServletResponse response) {
 		//System.err.println("Pool has " + pool.getSize() + " elements");
-
-		String output = "", format = query.getFormat();
+		Query query = context.getQuery();
+		EntityFilter filter = EntityFilter.from(query);
+		// Pools near a point or in a box are filtered as they are loaded, before their limit
+		if (!filter.isEmpty() && query.getReturnType() != Query.ReturnType.NEAR 
+				&& query.getReturnType() != Query.ReturnType.BOUNDING_BOX)
+			pool = filter.filter(pool, context.getGaboto(), context.getSnapshot());
+		if (query.isPaged()) {
+			int size = pool.getSize();
+			pool = EntityPager.page(pool, query.getOrderByProperty(), query.getOffset(), query.getLimit(), 
+					context.getGaboto(), context.getSnapshot());
+			// Only a full page has another after it; error() resets the response, dropping the cursor
+			int next = query.getOffset() + query.getLimit();
+			if (query.getLimit() != -1 && next < size)
+				response.setHeader(CachedResponse.NEXT_CURSOR, 
+						Query.createCursor(startTime.getTimeInMillis(), context.getCachedSnapshot().getVersion(), next));
+		}
+		String format = query.getFormat();
+		if (!isNativeFormat(format)) {
+			outputWithGPSBabel(context, pool, response);
+			return;
+		}
+		PrintWriter writer;
+		try {
+			writer = response.getWriter();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 		if (query.getFormat().equals("kml")) {
-			output = createKml(pool, query);
 			response.setContentType("application/vnd.google-earth.kml+xml");
+			writePool(context, pool, createKmlTransformer(query), "", 
+					query.getArc() == null && query.getOrderBy() == null, writer);
 		} else if (query.getFormat().equals("json") || query.getFormat().equals("js")) {
 			response.setContentType(query.getJsCallback() != null ? "text/javascript" : "application/json");
 
 			JSONPoolTransformer transformer = new JSONPoolTransformer();
 			transformer.setNesting(query.getJsonDepth());
 
-			output = transformer.transform(pool);
-			if (query.getFormat().equals("js")) {
-				output = query.getJsCallback() + "(" + output + ");";
-			}
+			if (query.getFormat().equals("js"))
+				writer.write(query.getJsCallback() + "(");
+			if (query.getFields() != null) {
+				try {
+					new JSONProjectionWriter(query.getFieldNames(), query.getFields(), 
+							query.getSearchPassive(), query.getSearchIndirect()).write(pool, writer);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			} else
+				writePool(context, pool, transformer, ",", true, writer);
+			if (query.getFormat().equals("js"))
+				writer.write(");");
 		} else if (query.getFormat().equals("gjson")) {
 			GeoJSONPoolTransfomer transformer = new GeoJSONPoolTransfomer();
 			if (query.getArc() != null) {
@@ -521,91 +1011,50 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 				transformer.setOrderBy(query.getOrderByProperty().getURI());
 			}
 			transformer.setDisplayParentName(query.getDisplayParentName());
+			response.setContentType("text/javascript");
 
-			output += transformer.transform(pool);
 			if (query.getJsCallback() != null)
-				output = query.getJsCallback() + "(" + output + ");";
-			response.setContentType("text/javascript");
+				writer.write(query.getJsCallback() + "(");
+			writePool(context, pool, transformer, ",", 
+					query.getArc() == null && query.getOrderBy() == null, writer);
+			if (query.getJsCallback() != null)
+				writer.write(");");
 
 		} else if (query.getFormat().equals("autosuggest")) {
 			response.setContentType(query.getJsCallback() != null ? "text/javascript" : "application/json");
-			Map<String,List<OxpEntity>> places = new HashMap<String,List<OxpEntity>>();
-			Set<OxpEntity> entities = new HashSet<OxpEntity>();
-			for (GabotoEntity entity : pool.getEntities()) {
-				String name = ((OxpEntity) entity).getName();
-				if (name == null)
-					continue;
-				if (!places.containsKey(name))
-					places.put(name, new LinkedList<OxpEntity>());
-				places.get(name).add((OxpEntity) entity);
+			AutosuggestIndex index = context.getCachedSnapshot().getAutosuggestIndex();
+			Set<String> uris = null;
+			if (query.getReturnType() != Query.ReturnType.ALL || !filter.isEmpty()) {
+				uris = new HashSet<String>();
+				for (GabotoEntity entity : pool.getEntities())
+					uris.add(entity.getUri());
 			}
-			for (List<OxpEntity> entitiesByName : places.values()) {
-				Set<OxpEntity> toRemove = new HashSet<OxpEntity>();
-				for (int i=0; i < entitiesByName.size(); i++) {
-					if (!(entitiesByName.get(i) instanceof Organization))
-						continue;
-				    Organization org = (Organization) entitiesByName.get(i);
-					for (int j=0; j < entitiesByName.size(); j++) { 
-						if (!(entitiesByName.get(j) instanceof Place))
-							continue;
-						Place place = (Place) entitiesByName.get(j);
-						if (org.getOccupiedPlaces() != null && org.getOccupiedPlaces().contains(place))
-							toRemove.add(org);
-					}
-				}
-				for (OxpEntity entity : entitiesByName)
-					if (!toRemove.contains(entity))
-						entities.add(entity);
-			}
-			
-			
-			PrintWriter writer;
+			Collection<AutosuggestIndex.Item> items;
+			if (query.getAutosuggestPrefix() != null)
+				items = index.search(query.getAutosuggestPrefix(), 
+						query.getLimit() == -1 ? DEFAULT_AUTOSUGGEST_LIMIT : query.getLimit(), uris);
+			else
+				items = index.all(uris);
+
 			boolean first = true;
-			try {
-				writer = response.getWriter();
-			} catch (IOException e) {
-				throw new RuntimeException("Couldn't write to output stream.");
-			}
 			if (query.getJsCallback() != null)
 				writer.print(query.getJsCallback()+'(');
 			writer.print("{\"items\": [");
-			
-			for (OxpEntity entity : entities) {
+			int count = 0;
+			for (AutosuggestIndex.Item item : items) {
+				if (query.getAutosuggestPrefix() == null && query.getLimit() != -1 && count++ == query.getLimit())
+					break;
 				if (!first) {
 					writer.print(",");
 				} else
 					first = false;
-				writer.print("\n  {\"id\": \"");
-				writer.print(entity.getUri().substring(entity.getUri().lastIndexOf("/")+1));
-				writer.print("\", \"name\": \"");
-				String name;
-				if (entity instanceof Place)
-					name = ((Place) entity).getFullyQualifiedTitle();
-				else
-					name = entity.getName();
-				writer.print(StringEscapeUtils.escapeJava(name)+"\"");
-				
-				List<String> altLabels = new LinkedList<String>();
-				if (entity.getAltLabels() != null) altLabels.addAll(entity.getAltLabels());
-				if (entity.getHiddenLabels() != null) altLabels.addAll(entity.getHiddenLabels());
-				if (altLabels.size() > 0) {
-					String labels = altLabels.get(0);
-					for (int i=1; i<altLabels.size(); i++)
-						labels += "\t" + altLabels.get(i);
-					writer.print(", \"altNames\": \"");
-					writer.print(StringEscapeUtils.escapeJava(labels));
-					writer.print("\"");
-				}
-				writer.print("}");
-				
+				writer.print("\n  ");
+				writer.print(item.getJson());
 			}
 			if (query.getJsCallback() != null)
 				writer.println("\n]});");
 			else
 				writer.println("\n]}");
-			response.setContentType("text/javascript");
-			
-			
 
 		} else if (format.equals("xml") || format.equals("n3") || format.equals("ttl") || format.equals("nt")) {
 			String outputFormat, contentType;
@@ -626,201 +1075,85 @@ public class OxPointsQueryServlet extends OxPointsServlet {
 			EntityPoolTransformer transformer;
 			try {
 				transformer = RDFPoolTransformerFactory.getRDFPoolTransformer(outputFormat);
-				output = transformer.transform(pool);
 			} catch (UnsupportedQueryFormatException e) {
 				throw new IllegalArgumentException(e);
 			}
 			response.setContentType(contentType);
+			// Only N-Triples can be concatenated without clashing prefixes and blank node labels 
+			writePool(context, pool, transformer, "", format.equals("nt"), writer);
 
 		} else if (query.getFormat().equals("txt")) {
-			try { 
-				for (GabotoEntity entity: pool.getEntities()) { 
-					response.getWriter().write(entity.toString() + "\n");
-					for (Entry<String, Object> entry : entity.getAllDirectProperties().entrySet()) { 
-						if (entry.getValue() != null)
-							response.getWriter().write("  " + entry.getKey() + " : " + entry.getValue() + "\n");
-					}
+			response.setContentType("text/plain");
+			for (GabotoEntity entity: pool.getEntities()) { 
+				writer.write(entity.toString() + "\n");
+				for (Entry<String, Object> entry : entity.getAllDirectProperties().entrySet()) { 
+					if (entry.getValue() != null)
+						writer.write("  " + entry.getKey() + " : " + entry.getValue() + "\n");
 				}
-			} catch (IOException e) {
-				throw new RuntimeException(e);
 			}
-			response.setContentType("text/plain");
-		} else {
-			output = runGPSBabel(createKml(pool, query), "kml", query.getFormat());
-			if (output.equals(""))
-				throw new RuntimeException("No output created by GPSBabel");
-		}
-		// System.err.println("output:" + output + ":");
-		try {
-			response.getWriter().write(output);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
 		}
 	}
 
-	private String createKml(EntityPool pool, Query query) {
-		String output;
-		KMLPoolTransformer transformer = new KMLPoolTransformer();
-		if (query.getArc() != null) {
-			transformer.addEntityFolderType(query.getFolderClassURI(), query.getArcProperty().getURI());
-		}
-		if (query.getOrderBy() != null) {
-			transformer.setOrderBy(query.getOrderByProperty().getURI());
-		}
-		transformer.setDisplayParentName(query.getDisplayParentName());
-
-		output = transformer.transform(pool);
-		return output;
+	private static boolean isNativeFormat(String format) {
+		return format.equals("kml") || format.equals("json") || format.equals("js") || format.equals("gjson") 
+				|| format.equals("autosuggest") || format.equals("xml") || format.equals("n3") || format.equals("ttl") 
+				|| format.equals("nt") || format.equals("txt");
 	}
 
 	/**
-	 * @param input
-	 *          A String, normally kml
-	 * @param formatIn
-	 *          format name, other than kml
-	 * @param formatOut
-	 *          what you want out
-	 * @return the reformatted String
+	 * Convert the KML rendering to any other format gpsbabel knows, 
+	 * streaming in both directions.
 	 */
-	public static String runGPSBabel(String input, String formatIn, String formatOut) {
-		// '/usr/bin/gpsbabel -i kml -o ' . $format . ' -f ' . $In . ' -F ' . $Out;
-		if (formatIn == null)
-			formatIn = "kml";
-		if (formatOut == null)
-			throw new IllegalArgumentException("Missing output format for GPSBabel");
-
-		OutputStream stdin = null;
-		InputStream stderr = null;
-		InputStream stdout = null;
-
-		String output = "";
-		String command = "/usr/bin/gpsbabel -i " + formatIn + " -o " + formatOut + " -f - -F -";
-		//System.err.println("GPSBabel command:" + command);
-		Process process;
+	private void outputWithGPSBabel(final RequestContext context, final EntityPool pool, HttpServletResponse response) {
+		final Query query = context.getQuery();
+		final OutputStream out;
 		try {
-			process = Runtime.getRuntime().exec(command, null, null);
+			out = response.getOutputStream();
 		} catch (IOException e) {
-			throw new AnticipatedException("Not able to use GPSBabel to produce the desired output.", 501);
+			throw new RuntimeException(e);
 		}
 		try {
-			stdin = process.getOutputStream();
-
-			stdout = process.getInputStream();
-			stderr = process.getErrorStream();
-			try {
-				stdin.write(input.getBytes());
-				stdin.flush();
-				stdin.close();
-			} catch (IOException e) {
-				// clean up if any output in stderr
-				BufferedReader errBufferedReader = new BufferedReader(new InputStreamReader(stderr));
-				String stderrString = "";
-				String stderrLine = null;
-				try {
-					while ((stderrLine = errBufferedReader.readLine()) != null) {
-						System.err.println("[Stderr Ex] " + stderrLine);
-						stderrString += stderrLine;
-					}
-					errBufferedReader.close();
-				} catch (IOException e2) {
-					throw new RuntimeException("Command " + command + " stderr reader failed:" + e2);
-				}
-				throw new RuntimeException("Command " + command + " gave error:\n" + stderrString);
-			}
-
-			BufferedReader brCleanUp = new BufferedReader(new InputStreamReader(stdout));
-			String line;
-			try {
-				while ((line = brCleanUp.readLine()) != null) {
-					System.out.println("[Stdout] " + line);
-					output += line;
-				}
-				brCleanUp.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-
-			// clean up if any output in stderr
-			brCleanUp = new BufferedReader(new InputStreamReader(stderr));
-			String stderrString = "";
-			try {
-				while ((line = brCleanUp.readLine()) != null) {
-					System.err.println("[Stderr] " + line);
-					stderrString += line;
+			gpsbabel.convert("kml", query.getFormat(), new GPSBabel.Input() {
+				public void writeTo(OutputStream stdin) throws IOException {
+					Writer kml = new BufferedWriter(new OutputStreamWriter(stdin, "UTF-8"));
+					writePool(context, pool, createKmlTransformer(query), "", 
+							query.getArc() == null && query.getOrderBy() == null, kml);
+					kml.flush();
 				}
-				brCleanUp.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-			if (!stderrString.equals(""))
-				throw new RuntimeException("Command " + command + " gave error:\n" + stderrString);
-		} finally {
-			process.destroy();
+			}, out);
+		} catch (AnticipatedException e) {
+			sendStreamError(response, out, e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		return output;
 	}
 
-	public static String getGPSBabelVersion() {
-		if (gpsbabelVersion != null ) 
-			return gpsbabelVersion;
-
-		// '/usr/bin/gpsbabel -V
-		OutputStream stdin = null;
-		InputStream stderr = null;
-		InputStream stdout = null;
-
-		String output = "";
-		String command = "/usr/bin/gpsbabel -V";
-		//System.err.println("GPSBabel command:" + command);
-		Process process;
+	/**
+	 * Write the pool an entity at a time unless its rendering depends upon 
+	 * the pool as a whole.
+	 */
+	private void writePool(RequestContext context, EntityPool pool, EntityPoolTransformer transformer, 
+			String separator, boolean streamable, Writer writer) {
 		try {
-			process = Runtime.getRuntime().exec(command, null, null);
+			if (streamable)
+				new StreamingPoolWriter(transformer, separator).write(pool, context.getGaboto(), context.getSnapshot(), writer);
+			else
+				writer.write(transformer.transform(pool));
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		try {
-			stdin = process.getOutputStream();
-
-			stdout = process.getInputStream();
-			stderr = process.getErrorStream();
-			stdin.flush();
-			stdin.close();
-
-			BufferedReader brCleanUp = new BufferedReader(new InputStreamReader(stdout));
-			String line;
-			try {
-				while ((line = brCleanUp.readLine()) != null) {
-					System.out.println("[Stdout] " + line);
-					output += line;
-				}
-				brCleanUp.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+	}
 
-			// clean up if any output in stderr
-			brCleanUp = new BufferedReader(new InputStreamReader(stderr));
-			String stderrString = "";
-			try {
-				while ((line = brCleanUp.readLine()) != null) {
-					System.err.println("[Stderr] " + line);
-					stderrString += line;
-				}
-				brCleanUp.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-			if (!stderrString.equals(""))
-				throw new RuntimeException("Command " + command + " gave error:\n" + stderrString);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} finally {
-			process.destroy();
+	private KMLPoolTransformer createKmlTransformer(Query query) {
+		KMLPoolTransformer transformer = new KMLPoolTransformer();
+		if (query.getArc() != null) {
+			transformer.addEntityFolderType(query.getFolderClassURI(), query.getArcProperty().getURI());
 		}
-		//GPSBabel Version 1.3.6
-		gpsbabelVersion =  output.substring("GPSBabel Version ".length());
-		return gpsbabelVersion;
+		if (query.getOrderBy() != null) {
+			transformer.setOrderBy(query.getOrderByProperty().getURI());
+		}
+		transformer.setDisplayParentName(query.getDisplayParentName());
+		return transformer;
 	}
 
-
 }
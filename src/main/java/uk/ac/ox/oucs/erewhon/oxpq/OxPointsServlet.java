@@ -3,10 +3,8 @@ package uk.ac.ox.oucs.erewhon.oxpq;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Calendar;
+import java.util.Collection;
 
-import javax.servlet.ServletException;
-import javax.servlet.ServletRequest;
-import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -14,8 +12,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import net.sf.gaboto.Gaboto;
 import net.sf.gaboto.GabotoConfiguration;
-import net.sf.gaboto.GabotoFactory;
-import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.time.TimeInstant;
 
 public abstract class OxPointsServlet extends HttpServlet {
 
@@ -23,11 +20,12 @@ public abstract class OxPointsServlet extends HttpServlet {
 
   protected static GabotoConfiguration config = null;
   protected static Calendar startTime = null;
+  protected static SnapshotCache snapshots = null;
+  protected static ResponseCache responses = null;
+
+  private static final int DEFAULT_SNAPSHOT_CACHE_SIZE = 8;
+  private static final int DEFAULT_RESPONSE_CACHE_SIZE = 64 * 1024 * 1024;
 
-  protected Gaboto gaboto = null;
-	protected GabotoSnapshot snapshot = null;
-  protected String dataDirectory = null; 
-  
   public OxPointsServlet() {
     super();
     
@@ -38,31 +36,69 @@ public abstract class OxPointsServlet extends HttpServlet {
   public void init() {
     config = GabotoConfiguration.fromConfigFile();
     startTime = Calendar.getInstance();
+    synchronized (OxPointsServlet.class) {
+      if (snapshots == null)
+        snapshots = new SnapshotCache(TimeInstant.from(startTime), getSnapshotCacheSize());
+      if (responses == null)
+        responses = new ResponseCache(getIntInitParameter("responseCacheSize", DEFAULT_RESPONSE_CACHE_SIZE));
+    }
     //System.err.println("OxpointsServelet.init leaving");
   }
+
+  private int getSnapshotCacheSize() {
+    return getIntInitParameter("snapshotCacheSize", DEFAULT_SNAPSHOT_CACHE_SIZE);
+  }
+
+  /**
+   * @return the value of a numeric init-param, or the default if it is not given
+   */
+  protected int getIntInitParameter(String name, int defaultValue) {
+    String initParam = getServletConfig().getInitParameter(name);
+    if (initParam == null)
+      return defaultValue;
+    try {
+      return Integer.parseInt(initParam.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + name + " " + initParam, e);
+    }
+  }
   
   
   /**
    * Establish which datastore we are looking at.
-   * 
-   * @see javax.servlet.http.HttpServlet#service(javax.servlet.ServletRequest, javax.servlet.ServletResponse)
    */
-  @Override
-  public void service(ServletRequest req, ServletResponse res) throws ServletException, IOException {
-    //System.err.println("In Service call ");
-    dataDirectory = getDataDirectory(); 
-    //System.err.println("Datadictionary " + dataDirectory);
-    gaboto = GabotoFactory.getGaboto(dataDirectory);
-    //System.err.println("Gaboto contains " + gaboto.getJenaModelViewOnNamedGraphSet().size() +  " entities");
-    
+  protected String getDataDirectory() {
+    String initParam = getServletConfig().getInitParameter("dataDirectory");
+    return initParam == null ? config.getDataDirectory() : initParam;
+  }
 
-    
-    super.service(req, res);
+  /**
+   * Discard everything derived from a datastore which has been written to.
+   */
+  protected static void dataChanged(String dataDirectory) {
+    dataChanged(dataDirectory, null);
   }
 
-  private String getDataDirectory() {
-    String initParam = getServletConfig().getInitParameter("dataDirectory");
-    return initParam == null ? config.getDataDirectory() : initParam;
+  /**
+   * @param changedSubjects the URIs of the entities written to, so that 
+   *        indexes can be updated for them alone, null if not known
+   */
+  protected static void dataChanged(String dataDirectory, Collection<String> changedSubjects) {
+    snapshots.invalidate(dataDirectory, changedSubjects);
+    responses.clear();
+  }
+
+  /**
+   * Resolve the datastore and snapshot for a request.
+   * 
+   * @param query the parsed request, null for the default snapshot and no query
+   */
+  protected RequestContext createContext(Query query) {
+    String dataDirectory = getDataDirectory();
+    Gaboto gaboto = GabotoStores.getGaboto(dataDirectory);
+    //System.err.println("Gaboto contains " + gaboto.getJenaModelViewOnNamedGraphSet().size() +  " entities");
+    TimeInstant instant = query == null ? null : query.getTimeInstant();
+    return new RequestContext(dataDirectory, gaboto, snapshots.get(dataDirectory, instant), query);
   }
   
   /**
@@ -71,6 +107,11 @@ public abstract class OxPointsServlet extends HttpServlet {
    * 
    */
   protected void error(HttpServletRequest request, HttpServletResponse response, AnticipatedException exception) {
+    // Drop the headers of the response which failed, such as its ETag
+    if (!response.isCommitted()) {
+      response.reset();
+      response.setCharacterEncoding("UTF-8");
+    }
     response.setContentType("text/html");
     System.err.println(exception.getHttpStatusCode());
     response.setStatus(exception.getHttpStatusCode());
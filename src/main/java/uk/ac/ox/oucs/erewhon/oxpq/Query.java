@@ -34,15 +34,19 @@ package uk.ac.ox.oucs.erewhon.oxpq;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Enumeration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -62,6 +66,7 @@ import net.sf.gaboto.vocabulary.VCardVocab;
 import net.sf.gaboto.vocabulary.MeterVocab;
 
 import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
 
 public final class Query {
 
@@ -79,10 +84,23 @@ public final class Query {
 	private boolean displayParentName = true;
 	private int jsonDepth = 1;
 	private String format = null;
+	private boolean formatSpecified = false;
 	// See http://bob.pythonmac.org/archives/2005/12/05/remote-json-jsonp/
 	private String jsCallback = null;
-
-	private Property notProperty;
+	private String autosuggestPrefix = null;
+	private int limit = -1;
+	private int offset = 0;
+	private String searchTerms = null;
+	private long cursorEpoch = -1;
+	private long cursorVersion = -1;
+	private List<String> fieldNames = null;
+	private List<Property> fields = null;
+	private int depth = -1;
+	private double[] coordinates = null;
+	private double radius = DEFAULT_RADIUS;
+
+	private List<Property> notProperties = new ArrayList<Property>();
+	private List<Property> hasProperties = new ArrayList<Property>();
 	private Property orderByProperty;
 	private Property arcProperty;
 	private Property requestedProperty;
@@ -94,16 +112,26 @@ public final class Query {
 	private ReturnType returnType = ReturnType.ALL;
 	private String folderClassURI = OxPointsVocab.NS + "College";
 	private boolean needsCodeLookup;
+	private String cacheKey;
+
+	private static final double DEFAULT_RADIUS = 1000;
+	/** The largest radius, in metres, which a /near/ query may ask for. */
+	static final double MAX_RADIUS = 100000;
+	private static final int DEFAULT_PAGE_SIZE = 100;
 
 	private static final String ENTITY_PREFIX = "http://oxpoints.oucs.ox.ac.uk/id/";
 
 	public enum ReturnType {
 		META_TIMESTAMP, META_TYPES, META_NEXT_ID, ALL, TYPE_COLLECTION, 
 		INDIVIDUAL, 
-		NOT_FILTERED_TYPE_COLLECTION,
 		PROPERTY_ANY, 
 		PROPERTY_SUBJECT,
 		PROPERTY_OBJECT,
+		PROPERTY_SUBJECT_TRANSITIVE,
+		PROPERTY_OBJECT_TRANSITIVE,
+		NEAR,
+		SEARCH,
+		BOUNDING_BOX,
 		SPARQL_QUERY
 	} 
 
@@ -142,6 +170,8 @@ public final class Query {
 
 		map.put("supplies", MeterVocab.supplies);
 		map.put("downstreamOf", MeterVocab.downstreamOf);
+		// The coding of measure: specs, which the generated vocabulary has no constant for
+		map.put("measureIdentifier", ResourceFactory.createProperty(MeterVocab.NS + "measureIdentifier"));
 
 		//map.put("sameAs", OWLVocab.sameAs);
 
@@ -155,6 +185,17 @@ public final class Query {
 	 */
 	@SuppressWarnings("unchecked")
 	public static Query fromRequest(HttpServletRequest request) {
+		return fromPath(request.getPathInfo(), request.getParameterMap());
+	}
+
+	/**
+	 * Parse a request without a servlet request, eg when rendering ahead of 
+	 * time.
+	 * 
+	 * @param pathInfo eg /type/College.kml
+	 * @param parameters the values of each parameter, as from getParameterMap
+	 */
+	public static Query fromPath(String pathInfo, Map<String, String[]> parameters) {
 		Query q = new Query();
 		q.format = "xml";
 
@@ -165,7 +206,6 @@ public final class Query {
 		q.displayParentName = true;
 		q.jsonDepth = 1;
 
-		String pathInfo = request.getPathInfo();
 		if (pathInfo == null) 
 			throw new AnticipatedException("Expected path info", 400  );
 		int dotPosition = pathInfo.lastIndexOf('.');
@@ -173,8 +213,12 @@ public final class Query {
 		String resultsetSpec;
 		if (dotPosition == -1) {
 			resultsetSpec = pathInfo;
+		} else if (pathInfo.substring(dotPosition + 1).matches("[0-9]+")) {
+			// A decimal point in a coordinate, not a format
+			resultsetSpec = pathInfo;
 		} else {
 			q.format = pathInfo.substring(dotPosition + 1);
+			q.formatSpecified = true;
 			resultsetSpec = pathInfo.substring(0,dotPosition);
 		}    
 		//System.err.println(resultsetSpec);
@@ -195,6 +239,17 @@ public final class Query {
 		} else if (resultsetSpec.startsWith("/class/")) {  
 			q.type = resultsetSpec.substring(7);
 			q.returnType = ReturnType.TYPE_COLLECTION;
+		} else if (resultsetSpec.startsWith("/search/")) {
+			q.searchTerms = resultsetSpec.substring(8);
+			q.returnType = ReturnType.SEARCH;
+		} else if (resultsetSpec.startsWith("/near/")) {
+			q.coordinates = parseCoordinates(resultsetSpec.substring(6), 2);
+			q.returnType = ReturnType.NEAR;
+		} else if (resultsetSpec.startsWith("/bbox/")) {
+			q.coordinates = parseCoordinates(resultsetSpec.substring(6), 4);
+			if (q.coordinates[0] > q.coordinates[2] || q.coordinates[1] > q.coordinates[3])
+				throw new AnticipatedException("Expected minLat,minLong,maxLat,maxLong " + resultsetSpec.substring(6), 400);
+			q.returnType = ReturnType.BOUNDING_BOX;
 		} else if (resultsetSpec.startsWith("/sparql")) {
 			q.returnType = ReturnType.SPARQL_QUERY;
 		} else if (parseTemplate(resultsetSpec,q)) {
@@ -206,10 +261,9 @@ public final class Query {
 		} else
 			throw new AnticipatedException("Unexpected path info " + pathInfo, 400);
 
-		Enumeration<String> en = request.getParameterNames();
-		while (en.hasMoreElements()) {
-			String pName = en.nextElement();
-			String pValue =  request.getParameter(pName);
+		for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+			String pName = parameter.getKey();
+			String pValue = parameter.getValue()[0];
 
 			//System.err.println("Param:" + pName + "=" + pValue);
 			if (pName.equals("arc")) {
@@ -219,10 +273,19 @@ public final class Query {
 				else 
 					throw new AnticipatedException("Unrecognised arc property name " + pValue, 400);
 			} else if (pName.equals("not")) {
-				q.returnType = ReturnType.NOT_FILTERED_TYPE_COLLECTION;
-				q.notProperty = getPropertyFromAbbreviation(pValue);
-				if (q.notProperty == null)
-					throw new AnticipatedException("Unrecognised not property name " + pValue, 400);
+				for (String value : parameter.getValue()) {
+					Property notProperty = getPropertyFromAbbreviation(value);
+					if (notProperty == null)
+						throw new AnticipatedException("Unrecognised not property name " + value, 400);
+					q.notProperties.add(notProperty);
+				}
+			} else if (pName.equals("has")) {
+				for (String value : parameter.getValue()) {
+					Property hasProperty = getPropertyFromAbbreviation(value);
+					if (hasProperty == null)
+						throw new AnticipatedException("Unrecognised has property name " + value, 400);
+					q.hasProperties.add(hasProperty);
+				}
 			} else if (pName.equals("folderType")) { 
 				q.folderClassURI = getValidClassURI(pValue);
 				if (q.folderClassURI == null)
@@ -260,6 +323,52 @@ public final class Query {
 				q.sparqlQuery = pValue;
 			} else if (pName.equals("version")) {
 				// We want to ignore this one.
+			} else if (pName.equals("q")) {
+				q.autosuggestPrefix = pValue;
+			} else if (pName.equals("limit")) {
+				try {
+					q.limit = Integer.parseInt(pValue);
+				} catch (NumberFormatException e) {
+					throw new AnticipatedException("Invalid limit " + pValue, 400);
+				}
+				if (q.limit < 0)
+					throw new AnticipatedException("Invalid limit " + pValue, 400);
+			} else if (pName.equals("offset")) {
+				try {
+					q.offset = Integer.parseInt(pValue);
+				} catch (NumberFormatException e) {
+					throw new AnticipatedException("Invalid offset " + pValue, 400);
+				}
+				if (q.offset < 0)
+					throw new AnticipatedException("Invalid offset " + pValue, 400);
+			} else if (pName.equals("cursor")) {
+				// Applied after the loop, so that it takes precedence over offset
+			} else if (pName.equals("fields")) {
+				q.fieldNames = new ArrayList<String>();
+				q.fields = new ArrayList<Property>();
+				for (String field : pValue.split(",")) {
+					Property property = getPropertyFromAbbreviation(field);
+					if (property == null)
+						throw new AnticipatedException("Unrecognised field " + field, 400);
+					q.fieldNames.add(field);
+					q.fields.add(property);
+				}
+			} else if (pName.equals("depth")) {
+				try {
+					q.depth = Integer.parseInt(pValue);
+				} catch (NumberFormatException e) {
+					throw new AnticipatedException("Invalid depth " + pValue, 400);
+				}
+				if (q.depth < 1)
+					throw new AnticipatedException("Invalid depth " + pValue, 400);
+			} else if (pName.equals("radius")) {
+				try {
+					q.radius = Double.parseDouble(pValue);
+				} catch (NumberFormatException e) {
+					throw new AnticipatedException("Invalid radius " + pValue, 400);
+				}
+				if (!(q.radius > 0 && q.radius <= MAX_RADIUS))
+					throw new AnticipatedException("Invalid radius " + pValue + ", expected up to " + (long)MAX_RADIUS + " metres", 400);
 			} else if (pName.equals("jsonNesting")) {
 				try {
 					q.jsonDepth = Integer.parseInt(pValue);
@@ -267,11 +376,50 @@ public final class Query {
 					throw new IllegalArgumentException(e);
 				}
 			} else throw new AnticipatedException(
-					"Unrecognised parameter " + pName + ":" + request.getParameter(pName), 400);
+					"Unrecognised parameter " + pName + ":" + pValue, 400);
+		}
+		if (parameters.containsKey("cursor")) {
+			parseCursor(parameters.get("cursor")[0], q);
+			if (q.limit == -1)
+				q.limit = DEFAULT_PAGE_SIZE;
 		}
+		if (q.fields != null && !q.format.equals("json") && !q.format.equals("js"))
+			throw new AnticipatedException("fields may only be given for json", 400);
+		q.cacheKey = createCacheKey(pathInfo, parameters);
 		return q;
 	}
 
+	/**
+	 * The path followed by the parameters in name order, so that requests 
+	 * differing only in parameter order share a key. 
+	 * 
+	 * Each part is URL encoded, as the decoded path and values may 
+	 * themselves contain ? &amp; or =, and two requests must only share a 
+	 * key if they are the same request.
+	 */
+	private static String createCacheKey(String pathInfo, Map<String, String[]> parameters) {
+		Set<String> names = new TreeSet<String>(parameters.keySet());
+		StringBuilder key = new StringBuilder(encode(pathInfo));
+		char separator = '?';
+		for (String name : names) {
+			if (name.equals("version"))
+				continue;
+			for (String value : parameters.get(name)) {
+				key.append(separator).append(encode(name)).append('=').append(encode(value));
+				separator = '&';
+			}
+		}
+		return key.toString();
+	}
+
+	private static String encode(String part) {
+		try {
+			return URLEncoder.encode(part, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public String getFolderClassURI() {
 		return folderClassURI;
 	}
@@ -297,8 +445,27 @@ public final class Query {
 	public Property getOrderByProperty() {
 		return orderByProperty;
 	}
+	/**
+	 * @return the first property given as not, or null
+	 * @deprecated not may be repeated, use {@link #getNotProperties}
+	 */
+	@Deprecated
 	public Property getNotProperty() {
-		return notProperty;
+		return notProperties.isEmpty() ? null : notProperties.get(0);
+	}
+
+	/**
+	 * @return the properties given as not, which entities must not have
+	 */
+	public List<Property> getNotProperties() {
+		return notProperties;
+	}
+
+	/**
+	 * @return the properties given as has, which entities must have
+	 */
+	public List<Property> getHasProperties() {
+		return hasProperties;
 	}
 
 
@@ -317,12 +484,108 @@ public final class Query {
 	public String getFormat() {
 		return format;
 	}
+	/**
+	 * @return whether the format was given as an extension rather than defaulted
+	 */
+	public boolean isFormatSpecified() {
+		return formatSpecified;
+	}
 	public String getJsCallback() {
 		if (jsCallback == null && format.equals("js"))
 			jsCallback ="oxpoints";
 		return jsCallback;
 	}
 
+	/**
+	 * @return the prefix given as q, for autosuggest, or null
+	 */
+	public String getAutosuggestPrefix() {
+		return autosuggestPrefix;
+	}
+
+	/**
+	 * @return how many links a transitive query may follow, or -1 for no limit
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return lat,long for /near/ or minLat,minLong,maxLat,maxLong for /bbox/
+	 */
+	public double[] getCoordinates() {
+		return coordinates;
+	}
+
+	/**
+	 * @return the radius of a /near/ query in metres
+	 */
+	public double getRadius() {
+		return radius;
+	}
+
+	/**
+	 * @return the words of a /search/, eg "wolfson coll"
+	 */
+	public String getSearchTerms() {
+		return searchTerms;
+	}
+
+	/**
+	 * @return the number of results to skip
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the start time of the application which issued the cursor, 
+	 *         -1 if no cursor was given
+	 */
+	public long getCursorEpoch() {
+		return cursorEpoch;
+	}
+
+	/**
+	 * @return the snapshot version the cursor was issued for, -1 if no cursor was given
+	 */
+	public long getCursorVersion() {
+		return cursorVersion;
+	}
+
+	/**
+	 * @return whether offset and limit are to be applied to the pool, 
+	 *         rather than having been by the lookup itself
+	 */
+	public boolean isPaged() {
+		if (offset == 0 && limit == -1)
+			return false;
+		if (returnType == ReturnType.SEARCH || returnType == ReturnType.NEAR || returnType == ReturnType.BOUNDING_BOX)
+			return false;
+		return !format.equals("autosuggest");
+	}
+
+	/**
+	 * @return the properties to project JSON onto, null for all of them
+	 */
+	public List<Property> getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return the fields as requested, to key the JSON by
+	 */
+	public List<String> getFieldNames() {
+		return fieldNames;
+	}
+
+	/**
+	 * @return the most results wanted, or -1 if not given
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
 	public String getType() {
 		return type;
 	}
@@ -353,19 +616,24 @@ public final class Query {
 			} else
 				return false;
 		case 2: 
-			q.requestedProperty = getPropertyFromAbbreviation(tokens[0]);
+			// A trailing * follows the property transitively, eg /isPartOf*/oucs:medsci
+			boolean subjectTransitive = tokens[0].endsWith("*");
+			q.requestedProperty = getPropertyFromAbbreviation(stripStar(tokens[0]));
 			if (q.requestedProperty != null) {
-				q.requestedPropertyName = tokens[0];
+				q.requestedPropertyName = stripStar(tokens[0]);
 				if (isAnEntitySpec(tokens[1],q)) {
-					q.returnType = ReturnType.PROPERTY_SUBJECT; // _ prop obj
+					q.returnType = subjectTransitive ? 
+							ReturnType.PROPERTY_SUBJECT_TRANSITIVE : ReturnType.PROPERTY_SUBJECT; // _ prop obj
 					return true;
 				} else
 					return false;
 			} else if (isAnEntitySpec(tokens[0],q)) {
-				q.requestedProperty = getPropertyFromAbbreviation(tokens[1]);
+				boolean objectTransitive = tokens[1].endsWith("*");
+				q.requestedProperty = getPropertyFromAbbreviation(stripStar(tokens[1]));
 				if (q.requestedProperty != null) {
-					q.requestedPropertyName = tokens[1];
-					q.returnType = ReturnType.PROPERTY_OBJECT; // subj prop _
+					q.requestedPropertyName = stripStar(tokens[1]);
+					q.returnType = objectTransitive ? 
+							ReturnType.PROPERTY_OBJECT_TRANSITIVE : ReturnType.PROPERTY_OBJECT; // subj prop _
 					return true;          
 				} else
 					return false;
@@ -377,6 +645,76 @@ public final class Query {
 		}
 	}
 
+	/**
+	 * @param cursor as made by {@link #createCursor}
+	 */
+	private static void parseCursor(String cursor, Query q) {
+		String[] parts = cursor.split("-");
+		try {
+			if (parts.length != 3)
+				throw new NumberFormatException(cursor);
+			q.cursorEpoch = Long.parseLong(parts[0], Character.MAX_RADIX);
+			q.cursorVersion = Long.parseLong(parts[1], Character.MAX_RADIX);
+			q.offset = Integer.parseInt(parts[2], Character.MAX_RADIX);
+		} catch (NumberFormatException e) {
+			throw new AnticipatedException("Invalid cursor " + cursor, 400);
+		}
+		if (q.cursorEpoch < 0 || q.cursorVersion < 0 || q.offset < 0)
+			throw new AnticipatedException("Invalid cursor " + cursor, 400);
+	}
+
+	/**
+	 * Versions are counted from when the application started, so the 
+	 * start time is part of the cursor too, and a cursor from before a 
+	 * restart is not taken as one for the same data.
+	 * 
+	 * @param epoch when the application started, in milliseconds
+	 * @param version the version of the snapshot being paged through
+	 * @param offset the first entity of the page
+	 * @return a token for the page, which is only valid for that version
+	 */
+	static String createCursor(long epoch, long version, int offset) {
+		return Long.toString(epoch, Character.MAX_RADIX) + "-" + Long.toString(version, Character.MAX_RADIX) 
+				+ "-" + Integer.toString(offset, Character.MAX_RADIX);
+	}
+
+	/**
+	 * @param spec comma separated decimal degrees, latitude then 
+	 *        longitude for each point, eg 51.75,-1.25
+	 */
+	private static double[] parseCoordinates(String spec, int count) {
+		String[] values = spec.split(",");
+		if (values.length != count)
+			throw new AnticipatedException("Expected " + count + " comma separated coordinates " + spec, 400);
+		double[] coordinates = new double[count];
+		for (int i = 0; i < count; i++) {
+			try {
+				coordinates[i] = Double.parseDouble(values[i]);
+			} catch (NumberFormatException e) {
+				throw new AnticipatedException("Invalid coordinate " + values[i], 400);
+			}
+			double range = i % 2 == 0 ? 90 : 180;
+			// Also rejects NaN
+			if (!(Math.abs(coordinates[i]) <= range))
+				throw new AnticipatedException("Coordinate out of range " + values[i], 400);
+		}
+		return coordinates;
+	}
+
+	private static String stripStar(String token) {
+		return token.endsWith("*") ? token.substring(0, token.length() - 1) : token;
+	}
+
+	/**
+	 * The coding properties used by entity specs, eg oucs:oucs.
+	 */
+	private static final List<String> codings = Collections.unmodifiableList(Arrays.asList(
+			"hasOUCSCode", "hasOLISCode", "hasOLISAlephCode", "hasOBNCode", "measureIdentifier", "hasFinanceCode"));
+
+	static List<String> getCodings() {
+		return codings;
+	}
+
 	static boolean isAnEntitySpec(String it, Query q) { 
 		if (it.startsWith("oucs:")) {
 			q.needsCodeLookup = true;
@@ -425,6 +763,22 @@ public final class Query {
 		}
 	}
 
+	/**
+	 * Parse one item of a batch lookup, which may be any entity spec but 
+	 * whose ids need not be eight digits.
+	 * 
+	 * @return a query of the participant codes or URIs, or null if it is not an entity spec
+	 */
+	static Query fromEntitySpec(String it) {
+		Query q = new Query();
+		String id = it.startsWith("id:") ? it.substring(3) : it;
+		if (id.matches("^[0-9]+$")) {
+			q.setParticipantURIs(Collections.singleton(ENTITY_PREFIX + id));
+			return q;
+		}
+		return isAnEntitySpec(it, q) ? q : null;
+	}
+
 	public static 
 	boolean startsWithPropertyName(String pathInfo) {
 		return getPropertyName(pathInfo) != null;
@@ -559,5 +913,13 @@ public final class Query {
 		return timeInstant;
 	}
 
+	/**
+	 * @return the normalised request, identifying what is to be rendered 
+	 *         from a given snapshot
+	 */
+	public String getCacheKey() {
+		return cacheKey;
+	}
+
 }
 
@@ -0,0 +1,457 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.JenaException;
+
+/**
+ * Reads RDF from a request body in batches of entities, each handed over 
+ * as a small RDF/XML document, which is what Gaboto reads.
+ * 
+ * RDF/XML is split between the top level elements of the rdf:RDF 
+ * element and N-Triples between lines, so neither is held whole. 
+ * RDF/XML is only split where every blank node named by rdf:nodeID so 
+ * far has been both described and referred to, so that a description 
+ * such as an address stays with the entity it belongs to. 
+ * N-Triples is only split before a statement about a new URI, so the 
+ * statements about blank nodes, such as addresses, which follow their 
+ * entity stay in its batch. Turtle and N3 have no such boundaries, so 
+ * are parsed whole and then batched by subject.
+ * 
+ */
+final class RDFIngest {
+
+  static final String RDF_XML = "RDF/XML";
+  static final String N_TRIPLES = "N-TRIPLE";
+  static final String TURTLE = "TURTLE";
+  static final String N3 = "N3";
+
+  private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+  private static final QName NODE_ID = new QName(RDF_NS, "nodeID");
+  private static final QName PARSE_TYPE = new QName(RDF_NS, "parseType");
+
+  /**
+   * What the children of an RDF/XML element are.
+   */
+  private enum Children { NODES, PROPERTIES, LITERAL }
+
+  /**
+   * One batch of entities, as RDF/XML.
+   */
+  static final class Batch {
+    private final int number;
+    private final String rdf;
+    private final int entities;
+    private final long statements;
+    private final Collection<String> subjects;
+
+    Batch(int number, String rdf, int entities, long statements, Collection<String> subjects) {
+      this.number = number;
+      this.rdf = rdf;
+      this.entities = entities;
+      this.statements = statements;
+      this.subjects = subjects;
+    }
+
+    int getNumber() {
+      return number;
+    }
+
+    String getRdf() {
+      return rdf;
+    }
+
+    int getEntities() {
+      return entities;
+    }
+
+    long getStatements() {
+      return statements;
+    }
+
+    /**
+     * @return the URIs of the subjects of the batch
+     */
+    Collection<String> getSubjects() {
+      return subjects;
+    }
+  }
+
+  /**
+   * Called with each batch as soon as it has been read.
+   */
+  interface Loader {
+    void load(Batch batch);
+  }
+
+  private final int batchSize;
+  private int batches = 0;
+
+  /**
+   * @param batchSize the number of entities in a batch
+   */
+  RDFIngest(int batchSize) {
+    if (batchSize < 1)
+      throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @param contentType the Content-Type of the request, which may be absent
+   * @return the Jena name of the syntax, or null if it is not supported
+   */
+  static String getLanguage(String contentType) {
+    if (contentType == null)
+      return RDF_XML;
+    String mimeType = contentType.split(";")[0].trim().toLowerCase();
+    // Forms are what curl --data sends, and the editor has always taken RDF/XML
+    if (mimeType.equals("application/rdf+xml") || mimeType.equals("application/xml") 
+        || mimeType.equals("text/xml") || mimeType.equals("application/x-www-form-urlencoded"))
+      return RDF_XML;
+    if (mimeType.equals("application/n-triples") || mimeType.equals("text/plain"))
+      return N_TRIPLES;
+    if (mimeType.equals("text/turtle") || mimeType.equals("application/x-turtle"))
+      return TURTLE;
+    if (mimeType.equals("text/n3") || mimeType.equals("text/rdf+n3"))
+      return N3;
+    return null;
+  }
+
+  /**
+   * @param language as returned by {@link #getLanguage}
+   * @return the number of batches read
+   */
+  int read(InputStream in, String language, Loader loader) throws IOException {
+    if (language.equals(RDF_XML))
+      readRdfXml(in, loader);
+    else if (language.equals(N_TRIPLES))
+      readNTriples(in, loader);
+    else
+      readModel(in, language, loader);
+    return batches;
+  }
+
+  private void readRdfXml(InputStream in, Loader loader) {
+    XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    try {
+      XMLEventReader reader = inputFactory.createXMLEventReader(in);
+      StartElement root = null;
+      while (root == null && reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (event.isStartElement())
+          root = event.asStartElement();
+      }
+      if (root == null)
+        throw new AnticipatedException("No RDF/XML found", 400);
+      boolean wrapped = RDF_NS.equals(root.getName().getNamespaceURI()) 
+          && "RDF".equals(root.getName().getLocalPart());
+
+      StringWriter rdf = null;
+      XMLEventWriter writer = null;
+      int entities = 0;
+      int depth = 1;
+      LinkedList<Children> children = new LinkedList<Children>();
+      children.addFirst(Children.NODES);
+      BlankNodes blankNodes = new BlankNodes();
+      if (!wrapped) {
+        // A lone node element is a document of one entity
+        rdf = new StringWriter();
+        writer = outputFactory.createXMLEventWriter(rdf);
+        writer.add(root);
+        entities = 1;
+      }
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (event.isStartDocument() || event.isEndDocument() || event.getEventType() == XMLEvent.DTD)
+          continue;
+        if (event.isStartElement()) {
+          if (depth == 1 && wrapped) {
+            if (writer == null) {
+              rdf = new StringWriter();
+              writer = outputFactory.createXMLEventWriter(rdf);
+              writer.add(root);
+            }
+            entities++;
+          }
+          if (wrapped)
+            children.addFirst(blankNodes.read(event.asStartElement(), children.getFirst(), depth));
+          depth++;
+        } else if (event.isEndElement()) {
+          depth--;
+          if (depth == 0)
+            break;
+          if (wrapped)
+            children.removeFirst();
+        }
+        if (writer != null)
+          writer.add(event);
+        if (depth == 1 && wrapped && event.isEndElement() && entities >= batchSize && blankNodes.isComplete()) {
+          writer.add(endOf(root));
+          writer.close();
+          loadRdfXml(rdf.toString(), entities, loader);
+          blankNodes.loaded();
+          writer = null;
+          entities = 0;
+        }
+      }
+      if (writer != null) {
+        writer.add(endOf(root));
+        writer.close();
+        loadRdfXml(rdf.toString(), entities, loader);
+      }
+    } catch (XMLStreamException e) {
+      throw new AnticipatedException("Invalid RDF/XML: " + e.getMessage(), e, 400);
+    }
+  }
+
+  /**
+   * The blank nodes named by rdf:nodeID in the batch being read. A 
+   * description at the top level and the references to it must be in 
+   * the same batch, or they would be parsed as different nodes.
+   */
+  private static final class BlankNodes {
+    private final Set<String> described = new HashSet<String>();
+    private final Set<String> referred = new HashSet<String>();
+    private final Set<String> loaded = new HashSet<String>();
+
+    /**
+     * @param kind what the element is, being a child of its parent
+     * @param depth 1 for the top level elements
+     * @return what the children of the element are
+     */
+    Children read(StartElement element, Children kind, int depth) {
+      if (kind == Children.LITERAL)
+        return Children.LITERAL;
+      Attribute nodeID = element.getAttributeByName(NODE_ID);
+      if (nodeID != null) {
+        String id = nodeID.getValue();
+        if (loaded.contains(id))
+          throw new AnticipatedException("Blank node " + id 
+              + " is referred to from entities too far apart to load in batches", 400);
+        if (kind == Children.NODES)
+          described.add(id);
+        // A node element within a property is described where it is referred to
+        if (kind == Children.PROPERTIES || depth > 1)
+          referred.add(id);
+      }
+      if (kind == Children.NODES)
+        return Children.PROPERTIES;
+      Attribute parseType = element.getAttributeByName(PARSE_TYPE);
+      if (parseType == null)
+        return Children.NODES;
+      return parseType.getValue().equals("Resource") ? Children.PROPERTIES : Children.LITERAL;
+    }
+
+    /**
+     * @return whether every blank node named so far has been both 
+     *         described and referred to, so the batch can be cut
+     */
+    boolean isComplete() {
+      return described.equals(referred);
+    }
+
+    void loaded() {
+      loaded.addAll(described);
+      described.clear();
+      referred.clear();
+    }
+  }
+
+  private static XMLEvent endOf(StartElement element) {
+    return XMLEventFactory.newInstance().createEndElement(element.getName(), element.getNamespaces());
+  }
+
+  private void loadRdfXml(String rdf, int entities, Loader loader) {
+    Model model = parse(rdf, RDF_XML);
+    loader.load(new Batch(++batches, rdf, entities, model.size(), getSubjects(model)));
+  }
+
+  private void readNTriples(InputStream in, Loader loader) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    StringBuilder lines = new StringBuilder();
+    String subject = null;
+    int entities = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      String trimmed = line.trim();
+      if (trimmed.startsWith("<")) {
+        int end = trimmed.indexOf('>');
+        String lineSubject = end == -1 ? trimmed : trimmed.substring(0, end + 1);
+        if (!lineSubject.equals(subject)) {
+          if (entities >= batchSize) {
+            loadModel(parse(lines.toString(), N_TRIPLES), entities, loader);
+            lines.setLength(0);
+            entities = 0;
+          }
+          subject = lineSubject;
+          entities++;
+        }
+      }
+      lines.append(line).append('\n');
+    }
+    if (lines.length() > 0)
+      loadModel(parse(lines.toString(), N_TRIPLES), entities, loader);
+  }
+
+  private static Model parse(String rdf, String language) {
+    Model model = ModelFactory.createDefaultModel();
+    try {
+      model.read(new StringReader(rdf), null, language);
+    } catch (JenaException e) {
+      throw invalid(language, e);
+    }
+    return model;
+  }
+
+  /**
+   * A syntax error is the client's, unlike a failure to load what parsed.
+   */
+  private static AnticipatedException invalid(String language, JenaException e) {
+    return new AnticipatedException("Invalid " + language + ": " + e.getMessage(), e, 400);
+  }
+
+  /**
+   * Batch a whole model by subject, keeping each blank node with the 
+   * entity which refers to it.
+   */
+  private void readModel(InputStream in, String language, Loader loader) {
+    Model model = ModelFactory.createDefaultModel();
+    try {
+      model.read(in, null, language);
+    } catch (JenaException e) {
+      throw invalid(language, e);
+    }
+    Model batch = ModelFactory.createDefaultModel();
+    Set<Resource> added = new HashSet<Resource>();
+    int entities = 0;
+    ResIterator subjects = model.listSubjects();
+    try {
+      while (subjects.hasNext()) {
+        Resource subject = subjects.nextResource();
+        if (!subject.isURIResource())
+          continue;
+        addDescription(model, subject, batch, added);
+        if (++entities >= batchSize) {
+          loadModel(batch, entities, loader);
+          batch = ModelFactory.createDefaultModel();
+          entities = 0;
+        }
+      }
+    } finally {
+      subjects.close();
+    }
+    // Blank nodes which no entity refers to
+    subjects = model.listSubjects();
+    try {
+      while (subjects.hasNext()) {
+        Resource subject = subjects.nextResource();
+        if (!added.contains(subject))
+          addDescription(model, subject, batch, added);
+      }
+    } finally {
+      subjects.close();
+    }
+    if (batch.size() > 0)
+      loadModel(batch, entities, loader);
+  }
+
+  private static void addDescription(Model model, Resource subject, Model batch, Set<Resource> added) {
+    if (!added.add(subject))
+      return;
+    StmtIterator statements = model.listStatements(subject, null, (RDFNode)null);
+    try {
+      while (statements.hasNext()) {
+        Statement statement = statements.nextStatement();
+        batch.add(statement);
+        if (statement.getObject().isAnon())
+          addDescription(model, (Resource)statement.getObject(), batch, added);
+      }
+    } finally {
+      statements.close();
+    }
+  }
+
+  private void loadModel(Model model, int entities, Loader loader) {
+    StringWriter rdf = new StringWriter();
+    model.write(rdf, RDF_XML);
+    loader.load(new Batch(++batches, rdf.toString(), entities, model.size(), getSubjects(model)));
+  }
+
+  private static Collection<String> getSubjects(Model model) {
+    Set<String> subjects = new LinkedHashSet<String>();
+    StmtIterator statements = model.listStatements();
+    try {
+      while (statements.hasNext()) {
+        Statement statement = statements.nextStatement();
+        if (statement.getSubject().isURIResource())
+          subjects.add(statement.getSubject().getURI());
+      }
+    } finally {
+      statements.close();
+    }
+    return subjects;
+  }
+
+}
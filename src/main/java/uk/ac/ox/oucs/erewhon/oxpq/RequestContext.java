@@ -0,0 +1,86 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoSnapshot;
+
+/**
+ * The state of a single request.
+ * 
+ * Servlet instances are shared between request threads, so anything 
+ * resolved for a request is carried here rather than in servlet fields.
+ * 
+ */
+public final class RequestContext {
+
+  private final String dataDirectory;
+  private final Gaboto gaboto;
+  private final CachedSnapshot cachedSnapshot;
+  private final Query query;
+
+  public RequestContext(String dataDirectory, Gaboto gaboto, CachedSnapshot cachedSnapshot, Query query) {
+    this.dataDirectory = dataDirectory;
+    this.gaboto = gaboto;
+    this.cachedSnapshot = cachedSnapshot;
+    this.query = query;
+  }
+
+  public String getDataDirectory() {
+    return dataDirectory;
+  }
+
+  public Gaboto getGaboto() {
+    return gaboto;
+  }
+
+  public CachedSnapshot getCachedSnapshot() {
+    return cachedSnapshot;
+  }
+
+  public GabotoSnapshot getSnapshot() {
+    return cachedSnapshot.getSnapshot();
+  }
+
+  public Query getQuery() {
+    return query;
+  }
+
+  /**
+   * @return a key identifying the response to this request from this snapshot
+   */
+  public String getCacheKey() {
+    return dataDirectory + "\n" + cachedSnapshot.getVersion() + "\n" + query.getCacheKey();
+  }
+
+}
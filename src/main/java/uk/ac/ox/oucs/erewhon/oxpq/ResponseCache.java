@@ -0,0 +1,94 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of rendered responses, bounded by their total size in bytes.
+ * 
+ * Keys include the snapshot version, so a response is never served 
+ * from a snapshot older than the one it would be rendered from; 
+ * {@link #clear()} releases the memory held by outdated responses.
+ * 
+ */
+public final class ResponseCache {
+
+  private final long maxBytes;
+  private long bytes = 0;
+  private final LinkedHashMap<String, CachedResponse> responses = 
+      new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+  /**
+   * @param maxBytes the total size of the responses to hold
+   */
+  public ResponseCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public synchronized CachedResponse get(String key) {
+    return responses.get(key);
+  }
+
+  /**
+   * Add a response, evicting the least recently used until the cache 
+   * is back within its size.
+   */
+  public synchronized void put(String key, CachedResponse response) {
+    if (response.getSize() > getMaxEntrySize())
+      return;
+    CachedResponse old = responses.put(key, response);
+    if (old != null)
+      bytes -= old.getSize();
+    bytes += response.getSize();
+    Iterator<CachedResponse> eldest = responses.values().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      bytes -= eldest.next().getSize();
+      eldest.remove();
+    }
+  }
+
+  public synchronized void clear() {
+    responses.clear();
+    bytes = 0;
+  }
+
+  /**
+   * A single response may take up to a quarter of the cache.
+   */
+  public long getMaxEntrySize() {
+    return maxBytes / 4;
+  }
+
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+
+/**
+ * Runs SPARQL queries on a small pool of threads of their own, so that 
+ * expensive queries queue behind each other rather than in front of 
+ * entity lookups. 
+ * 
+ * Queries are capped at a number of rows and a wall clock time, and 
+ * are aborted if the client goes away while results are being written.
+ * 
+ */
+final class SPARQLExecutor {
+
+  /**
+   * Writes the results of a query as they are read. 
+   */
+  interface ResultsWriter {
+    void write(ResultSet results) throws IOException;
+  }
+
+  /** How long an aborted query has to stop writing before we give up on it. */
+  private static final long ABORT_WAIT = 10000;
+
+  private final ThreadPoolExecutor executor;
+  private final SPARQLQueryCache queries;
+  private final long timeout;
+  private final long maxRows;
+
+  /**
+   * @param threads the number of queries to run at once
+   * @param queueSize the number of queries which may wait for a thread
+   * @param timeout milliseconds a query may run for, 0 for no limit
+   * @param maxRows the maximum rows a query may return, 0 for no limit
+   * @param cacheSize the number of parsed queries to keep
+   */
+  SPARQLExecutor(int threads, int queueSize, long timeout, long maxRows, int cacheSize) {
+    this.queries = new SPARQLQueryCache(cacheSize);
+    this.timeout = timeout;
+    this.maxRows = maxRows;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, 
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "oxpq-sparql-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Parse a query, restricting it to the maximum number of rows. 
+   * 
+   * Parsed queries are cached, and must not be modified.
+   * 
+   * @throws com.hp.hpl.jena.query.QueryParseException if the query is malformed
+   */
+  Query parse(String sparqlQuery) {
+    String key = SPARQLQueryCache.normalise(sparqlQuery);
+    Query query = queries.get(key);
+    if (query == null) {
+      query = QueryFactory.create(key);
+      if (maxRows > 0 && (!query.hasLimit() || query.getLimit() > maxRows))
+        query.setLimit(maxRows);
+      queries.put(key, query);
+    }
+    return query;
+  }
+
+  SPARQLQueryCache getQueryCache() {
+    return queries;
+  }
+
+  /**
+   * Run a SELECT query on the SPARQL threads, waiting for its results 
+   * to be written.
+   * 
+   * @throws AnticipatedException if the queue is full or the query times out
+   * @throws IOException if the results could not be written
+   */
+  void execute(Model model, Query query, final ResultsWriter writer) throws IOException {
+    final QueryExecution qexec = QueryExecutionFactory.create(query, model);
+    // Claimed by whichever comes first, the query starting or an abort
+    final AtomicBoolean claimed = new AtomicBoolean();
+    final CountDownLatch finished = new CountDownLatch(1);
+    Future<Object> future;
+    try {
+      future = executor.submit(new Callable<Object>() {
+        public Object call() throws IOException {
+          if (!claimed.compareAndSet(false, true))
+            return null;
+          try {
+            writer.write(qexec.execSelect());
+          } catch (IOException e) {
+            // The client has gone away
+            qexec.abort();
+            throw e;
+          } finally {
+            qexec.close();
+            finished.countDown();
+          }
+          return null;
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      qexec.close();
+      throw new AnticipatedException("Too many SPARQL queries are waiting, please try again later", 503);
+    }
+    try {
+      if (timeout > 0)
+        future.get(timeout, TimeUnit.MILLISECONDS);
+      else
+        future.get();
+    } catch (TimeoutException e) {
+      abort(qexec, future, claimed, finished);
+      throw new AnticipatedException("SPARQL query took longer than " + timeout + "ms", e, 503);
+    } catch (InterruptedException e) {
+      abort(qexec, future, claimed, finished);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Stop a query and wait for it to stop writing, as the response it 
+   * writes to is about to be given an error and then recycled. 
+   * 
+   * A query which started before it was cancelled has to notice the abort 
+   * at its next row, or its next write to finish, so the wait is bounded.
+   */
+  private static void abort(QueryExecution qexec, Future<Object> future, 
+      AtomicBoolean claimed, CountDownLatch finished) {
+    qexec.abort();
+    future.cancel(true);
+    // Not yet started, so will never write
+    if (claimed.compareAndSet(false, true)) {
+      qexec.close();
+      return;
+    }
+    boolean interrupted = Thread.interrupted();
+    try {
+      if (!finished.await(ABORT_WAIT, TimeUnit.MILLISECONDS))
+        System.err.println("Aborted SPARQL query still running after " + ABORT_WAIT + "ms");
+    } catch (InterruptedException e) {
+      interrupted = true;
+    } finally {
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hp.hpl.jena.query.Query;
+
+/**
+ * A bounded, least recently used cache of parsed SPARQL queries, keyed 
+ * by normalised query text.
+ * 
+ * Cached queries are shared between executions, so must not be 
+ * modified once cached.
+ * 
+ */
+final class SPARQLQueryCache {
+
+  private final Map<String, Query> queries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  SPARQLQueryCache(final int maxSize) {
+    queries = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param key normalised query text
+   * @return the parsed query, or null if it is not cached
+   */
+  Query get(String key) {
+    Query query;
+    synchronized (queries) {
+      query = queries.get(key);
+    }
+    if (query == null)
+      misses.incrementAndGet();
+    else
+      hits.incrementAndGet();
+    return query;
+  }
+
+  void put(String key, Query query) {
+    synchronized (queries) {
+      queries.put(key, query);
+    }
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Normalise line endings and strip the indentation and trailing space 
+   * of each line, so that the same template sent by different clients 
+   * shares a cache entry. 
+   * 
+   * Long string literals may hold significant whitespace, so queries 
+   * containing them only have their line endings normalised.
+   */
+  static String normalise(String sparqlQuery) {
+    String text = sparqlQuery.replace("\r\n", "\n").replace('\r', '\n').trim();
+    if (text.indexOf("\"\"\"") != -1 || text.indexOf("'''") != -1)
+      return text;
+    StringBuilder normalised = new StringBuilder(text.length());
+    for (String line : text.split("\n")) {
+      String trimmed = line.trim();
+      if (trimmed.length() == 0)
+        continue;
+      if (normalised.length() > 0)
+        normalised.append('\n');
+      normalised.append(trimmed);
+    }
+    return normalised.toString();
+  }
+
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+
+/**
+ * The formats in which SPARQL SELECT results can be returned.
+ * 
+ * Every format writes each solution as it is read from the ResultSet.
+ * 
+ */
+public enum SPARQLResultsFormat {
+
+  XML("application/sparql-results+xml", "text/xml", "xml", "srx") {
+    @Override
+    void write(ResultSet results, OutputStream stream) throws IOException {
+      Writer out = textWriter(stream);
+      SPARQLQueryResultProcessor.writeResults(results, out);
+      out.flush();
+    }
+  },
+
+  /** SPARQL 1.1 Query Results JSON Format. */
+  JSON("application/sparql-results+json", "application/sparql-results+json", "json", "srj") {
+    @Override
+    void write(ResultSet results, OutputStream stream) throws IOException {
+      Writer out = textWriter(stream);
+      List<String> vars = results.getResultVars();
+      out.write("{\"head\": {\"vars\": [");
+      for (int i = 0; i < vars.size(); i++) {
+        if (i > 0)
+          out.write(", ");
+        writeJSONString(vars.get(i), out);
+      }
+      out.write("]},\n \"results\": {\"bindings\": [");
+      boolean firstSolution = true;
+      while (results.hasNext()) {
+        QuerySolution solution = results.next();
+        out.write(firstSolution ? "\n  {" : ",\n  {");
+        firstSolution = false;
+        boolean firstBinding = true;
+        for (String var : vars) {
+          RDFNode node = solution.get(var);
+          if (node == null)
+            continue;
+          if (!firstBinding)
+            out.write(", ");
+          firstBinding = false;
+          writeJSONString(var, out);
+          out.write(": {\"type\": ");
+          if (node.isURIResource()) {
+            out.write("\"uri\", \"value\": ");
+            writeJSONString(node.toString(), out);
+          } else if (node.isLiteral()) {
+            Literal literal = (Literal) node;
+            out.write("\"literal\", \"value\": ");
+            writeJSONString(literal.getLexicalForm(), out);
+            if (!literal.getLanguage().equals("")) {
+              out.write(", \"xml:lang\": ");
+              writeJSONString(literal.getLanguage(), out);
+            } else if (literal.getDatatypeURI() != null) {
+              out.write(", \"datatype\": ");
+              writeJSONString(literal.getDatatypeURI(), out);
+            }
+          } else {
+            out.write("\"bnode\", \"value\": ");
+            writeJSONString(node.toString(), out);
+          }
+          out.write("}");
+        }
+        out.write("}");
+      }
+      out.write("\n]}}\n");
+      out.flush();
+    }
+  },
+
+  /** SPARQL 1.1 Query Results CSV Format, which gives values without their types. */
+  CSV("text/csv", "text/csv; charset=UTF-8", "csv") {
+    @Override
+    void write(ResultSet results, OutputStream stream) throws IOException {
+      Writer out = textWriter(stream);
+      List<String> vars = results.getResultVars();
+      for (int i = 0; i < vars.size(); i++) {
+        if (i > 0)
+          out.write(",");
+        writeCSVField(vars.get(i), out);
+      }
+      out.write("\r\n");
+      while (results.hasNext()) {
+        QuerySolution solution = results.next();
+        for (int i = 0; i < vars.size(); i++) {
+          if (i > 0)
+            out.write(",");
+          RDFNode node = solution.get(vars.get(i));
+          if (node == null)
+            continue;
+          if (node.isLiteral())
+            writeCSVField(((Literal) node).getLexicalForm(), out);
+          else if (node.isAnon())
+            writeCSVField("_:" + node.toString(), out);
+          else
+            writeCSVField(node.toString(), out);
+        }
+        out.write("\r\n");
+      }
+      out.flush();
+    }
+  },
+
+  /** SPARQL 1.1 Query Results TSV Format, which gives values as Turtle terms. */
+  TSV("text/tab-separated-values", "text/tab-separated-values; charset=UTF-8", "tsv") {
+    @Override
+    void write(ResultSet results, OutputStream stream) throws IOException {
+      Writer out = textWriter(stream);
+      List<String> vars = results.getResultVars();
+      for (int i = 0; i < vars.size(); i++) {
+        if (i > 0)
+          out.write("\t");
+        out.write("?" + vars.get(i));
+      }
+      out.write("\n");
+      while (results.hasNext()) {
+        QuerySolution solution = results.next();
+        for (int i = 0; i < vars.size(); i++) {
+          if (i > 0)
+            out.write("\t");
+          RDFNode node = solution.get(vars.get(i));
+          if (node == null)
+            continue;
+          if (node.isURIResource()) {
+            out.write("<" + node.toString() + ">");
+          } else if (node.isLiteral()) {
+            Literal literal = (Literal) node;
+            out.write("\"");
+            writeTurtleString(literal.getLexicalForm(), out);
+            out.write("\"");
+            if (!literal.getLanguage().equals(""))
+              out.write("@" + literal.getLanguage());
+            else if (literal.getDatatypeURI() != null)
+              out.write("^^<" + literal.getDatatypeURI() + ">");
+          } else {
+            out.write("_:" + node.toString());
+          }
+        }
+        out.write("\n");
+      }
+      out.flush();
+    }
+  },
+
+  /**
+   * A compact encoding for our own consumers.
+   * 
+   * The stream starts with the bytes <code>OXPR</code>, a format version 
+   * byte and the number of variables as an int, followed by each variable 
+   * name. Each row is introduced by a 1 byte and the stream ends with a 0 
+   * byte. A row holds, for each variable in order, a term type byte 
+   * (0 unbound, 1 URI, 2 plain literal, 3 literal with language, 
+   * 4 typed literal, 5 blank node) followed by its strings. 
+   * Strings are an int byte length followed by that many bytes of UTF-8.
+   */
+  BINARY("application/x-oxpoints-sparql-rows", "application/x-oxpoints-sparql-rows", "srb") {
+    @Override
+    void write(ResultSet results, OutputStream stream) throws IOException {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+      List<String> vars = results.getResultVars();
+      out.writeBytes("OXPR");
+      out.writeByte(1);
+      out.writeInt(vars.size());
+      for (String var : vars)
+        writeBinaryString(var, out);
+      while (results.hasNext()) {
+        QuerySolution solution = results.next();
+        out.writeByte(1);
+        for (String var : vars) {
+          RDFNode node = solution.get(var);
+          if (node == null) {
+            out.writeByte(0);
+          } else if (node.isURIResource()) {
+            out.writeByte(1);
+            writeBinaryString(node.toString(), out);
+          } else if (node.isLiteral()) {
+            Literal literal = (Literal) node;
+            if (!literal.getLanguage().equals("")) {
+              out.writeByte(3);
+              writeBinaryString(literal.getLexicalForm(), out);
+              writeBinaryString(literal.getLanguage(), out);
+            } else if (literal.getDatatypeURI() != null) {
+              out.writeByte(4);
+              writeBinaryString(literal.getLexicalForm(), out);
+              writeBinaryString(literal.getDatatypeURI(), out);
+            } else {
+              out.writeByte(2);
+              writeBinaryString(literal.getLexicalForm(), out);
+            }
+          } else {
+            out.writeByte(5);
+            writeBinaryString(node.toString(), out);
+          }
+        }
+      }
+      out.writeByte(0);
+      out.flush();
+    }
+  };
+
+  private final String mediaType;
+  private final String contentType;
+  private final String[] extensions;
+
+  private SPARQLResultsFormat(String mediaType, String contentType, String... extensions) {
+    this.mediaType = mediaType;
+    this.contentType = contentType;
+    this.extensions = extensions;
+  }
+
+  /**
+   * @return the content type to send, which may differ from the 
+   *         media type we accept for historical reasons
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Write the results as they are read, flushing but not closing the stream.
+   */
+  abstract void write(ResultSet results, OutputStream stream) throws IOException;
+
+  /**
+   * Character formats are written in UTF-8.
+   */
+  private static Writer textWriter(OutputStream stream) throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+  }
+
+  /**
+   * @return the format for a file extension, or null if there is none
+   */
+  public static SPARQLResultsFormat fromExtension(String extension) {
+    for (SPARQLResultsFormat format : values())
+      for (String e : format.extensions)
+        if (e.equals(extension))
+          return format;
+    return null;
+  }
+
+  /**
+   * Choose the format with the highest quality in an Accept header.
+   * 
+   * @return the preferred format, or null if none are acceptable
+   */
+  public static SPARQLResultsFormat fromAccept(String accept) {
+    if (accept == null)
+      return null;
+    SPARQLResultsFormat best = null;
+    float bestQuality = 0;
+    for (String range : accept.split(",")) {
+      String[] parts = range.split(";");
+      String mediaType = parts[0].trim().toLowerCase();
+      float quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            quality = Float.parseFloat(parameter.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      for (SPARQLResultsFormat format : values()) {
+        if (quality > bestQuality && 
+            (format.mediaType.equals(mediaType) || format.contentType.equals(mediaType))) {
+          best = format;
+          bestQuality = quality;
+        }
+      }
+    }
+    return best;
+  }
+
+  static void writeJSONString(String value, Writer out) throws IOException {
+    out.write('"');
+    StringEscapeUtils.escapeJava(out, value);
+    out.write('"');
+  }
+
+  static void writeCSVField(String value, Writer out) throws IOException {
+    if (value.indexOf(',') == -1 && value.indexOf('"') == -1 
+        && value.indexOf('\n') == -1 && value.indexOf('\r') == -1) {
+      out.write(value);
+    } else {
+      out.write('"');
+      out.write(value.replace("\"", "\"\""));
+      out.write('"');
+    }
+  }
+
+  static void writeTurtleString(String value, Writer out) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '\\': out.write("\\\\"); break;
+      case '"':  out.write("\\\""); break;
+      case '\n': out.write("\\n");  break;
+      case '\r': out.write("\\r");  break;
+      case '\t': out.write("\\t");  break;
+      default:   out.write(c);
+      }
+    }
+  }
+
+  static void writeBinaryString(String value, DataOutputStream out) throws IOException {
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+}
@@ -1,68 +1,78 @@
 package uk.ac.ox.oucs.erewhon.oxpq;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
 
 import org.apache.commons.lang.StringEscapeUtils;
 
-import com.hp.hpl.jena.query.QueryExecution;
-import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Literal;
-import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 
 
 class SPARQLQueryResultProcessor {
 
-	public static String performQuery(Model model, String query) {
-		String output = "";
-
-		QueryExecution qexec = QueryExecutionFactory.create( query, model );
-
-		ResultSet results = qexec.execSelect();
-
+	/**
+	 * Write results as SPARQL XML, each solution as soon as it is read.
+	 */
+	static void writeResults(ResultSet results, Writer out) throws IOException {
 		List<String> vars = results.getResultVars();
 
-		output += "<?xml version=\"1.0\"?>\n";
-		output += "<sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">\n";
-		output += "  <head>\n";
+		out.write("<?xml version=\"1.0\"?>\n");
+		out.write("<sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">\n");
+		out.write("  <head>\n");
 
 		for (String var : vars)
-			output += "    <variable name=\"" + StringEscapeUtils.escapeXml(var) + "\"/>\n";
+			out.write("    <variable name=\"" + StringEscapeUtils.escapeXml(var) + "\"/>\n");
 
-		output += "  </head>\n";
-		output += "  <results>\n";
+		out.write("  </head>\n");
+		out.write("  <results>\n");
 
 		while (results.hasNext()) {
 			QuerySolution solution = results.next();
-			output += "    <result>\n";
+			out.write("    <result>\n");
 			for (String var :vars) {
 				RDFNode node = solution.get(var);
-
-
-				output += "      <binding name=\""+StringEscapeUtils.escapeXml(var)+"\">\n";
-				if (node.isURIResource())
-					output += "        <uri>"+StringEscapeUtils.escapeXml(node.toString())+"</uri>\n";
-				else if (node.isLiteral()) {
+				// Unbound variables are omitted
+				if (node == null)
+					continue;
+
+				out.write("      <binding name=\"");
+				StringEscapeUtils.escapeXml(out, var);
+				out.write("\">\n");
+				if (node.isURIResource()) {
+					out.write("        <uri>");
+					StringEscapeUtils.escapeXml(out, node.toString());
+					out.write("</uri>\n");
+				} else if (node.isLiteral()) {
 					Literal literal = (Literal) node;
-					output += "        <literal";
-					if (!literal.getLanguage().equals(""))
-						output += " xml:lang=\""+StringEscapeUtils.escapeXml(literal.getLanguage())+"\"";
-					if (!literal.getDatatype().equals(""))
-						output += " datatype=\""+StringEscapeUtils.escapeXml(literal.getDatatypeURI())+"\"";
-					output += ">"+StringEscapeUtils.escapeXml(literal.getString())+"</literal>\n";
+					out.write("        <literal");
+					if (!literal.getLanguage().equals("")) {
+						out.write(" xml:lang=\"");
+						StringEscapeUtils.escapeXml(out, literal.getLanguage());
+						out.write("\"");
+					}
+					if (literal.getDatatypeURI() != null) {
+						out.write(" datatype=\"");
+						StringEscapeUtils.escapeXml(out, literal.getDatatypeURI());
+						out.write("\"");
+					}
+					out.write(">");
+					StringEscapeUtils.escapeXml(out, literal.getString());
+					out.write("</literal>\n");
 				} else if (node.isAnon()) {
-					output += "<bnode>"+ StringEscapeUtils.escapeXml(node.toString()) + "</bnode>\n";
+					out.write("        <bnode>");
+					StringEscapeUtils.escapeXml(out, node.toString());
+					out.write("</bnode>\n");
 				}
-				output += "      </binding>\n";
+				out.write("      </binding>\n");
 			}
-			output += "    </result>\n";
+			out.write("    </result>\n");
 		}
-		output += "  </results>\n";
-		output += "</sparql>\n";
-		
-		return output;
+		out.write("  </results>\n");
+		out.write("</sparql>\n");
 	}
 
 }
@@ -0,0 +1,341 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.vocabulary.DCVocab;
+import net.sf.gaboto.vocabulary.SKOSVocab;
+import net.sf.gaboto.vocabulary.VCardVocab;
+
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+/**
+ * An inverted index from the words of titles, labels and addresses to 
+ * the entities they describe.
+ * 
+ * Each word of a search must match the start of a word of an entity. 
+ * Exact matches, and matches in the title, rank higher than prefix 
+ * matches and matches in a label or address.
+ * 
+ * The index is not changed once built; {@link #update} returns a copy 
+ * with some entities reindexed, sharing whatever it did not have to change.
+ * 
+ */
+final class SearchIndex {
+
+  private static final Property ALT_LABEL = ResourceFactory.createProperty(SKOSVocab.NS + "altLabel");
+  private static final Property HIDDEN_LABEL = ResourceFactory.createProperty(SKOSVocab.NS + "hiddenLabel");
+
+  private static final int TITLE_WEIGHT = 4;
+  private static final int LABEL_WEIGHT = 2;
+  private static final int ADDRESS_WEIGHT = 1;
+
+  /** term to entity URI to weight */
+  private final TreeMap<String, Map<String, Integer>> postings;
+  /** entity URI to the terms indexed for it, so that it can be removed */
+  private final Map<String, Map<String, Integer>> documents;
+
+  private SearchIndex(TreeMap<String, Map<String, Integer>> postings, Map<String, Map<String, Integer>> documents) {
+    this.postings = postings;
+    this.documents = documents;
+  }
+
+  static SearchIndex build(GabotoSnapshot snapshot) {
+    Map<String, Map<String, Integer>> documents = new HashMap<String, Map<String, Integer>>();
+    addField(documents, snapshot, null, DCVocab.title, TITLE_WEIGHT);
+    addField(documents, snapshot, null, ALT_LABEL, LABEL_WEIGHT);
+    addField(documents, snapshot, null, HIDDEN_LABEL, LABEL_WEIGHT);
+    addAddresses(documents, snapshot, null);
+
+    TreeMap<String, Map<String, Integer>> postings = new TreeMap<String, Map<String, Integer>>();
+    for (Map.Entry<String, Map<String, Integer>> document : documents.entrySet())
+      for (Map.Entry<String, Integer> term : document.getValue().entrySet()) {
+        Map<String, Integer> uris = postings.get(term.getKey());
+        if (uris == null) {
+          uris = new HashMap<String, Integer>();
+          postings.put(term.getKey(), uris);
+        }
+        uris.put(document.getKey(), term.getValue());
+      }
+    return new SearchIndex(postings, documents);
+  }
+
+  /**
+   * @param snapshot the snapshot after the change
+   * @param uris the entities whose statements may have changed
+   * @return an index of the snapshot, reindexing only the given entities
+   */
+  SearchIndex update(GabotoSnapshot snapshot, Collection<String> uris) {
+    Map<String, Map<String, Integer>> changed = new HashMap<String, Map<String, Integer>>();
+    for (String uri : uris) {
+      Resource subject = ResourceFactory.createResource(uri);
+      addField(changed, snapshot, subject, DCVocab.title, TITLE_WEIGHT);
+      addField(changed, snapshot, subject, ALT_LABEL, LABEL_WEIGHT);
+      addField(changed, snapshot, subject, HIDDEN_LABEL, LABEL_WEIGHT);
+      addAddresses(changed, snapshot, subject);
+    }
+
+    TreeMap<String, Map<String, Integer>> newPostings = new TreeMap<String, Map<String, Integer>>(postings);
+    Map<String, Map<String, Integer>> newDocuments = new HashMap<String, Map<String, Integer>>(documents);
+    // Copy each posting list the first time it is changed
+    Set<String> copied = new HashSet<String>();
+    for (String uri : uris) {
+      Map<String, Integer> old = newDocuments.remove(uri);
+      if (old == null)
+        continue;
+      for (String term : old.keySet()) {
+        Map<String, Integer> posting = copyOnWrite(newPostings, copied, term);
+        posting.remove(uri);
+        if (posting.isEmpty())
+          newPostings.remove(term);
+      }
+    }
+    for (Map.Entry<String, Map<String, Integer>> document : changed.entrySet()) {
+      newDocuments.put(document.getKey(), document.getValue());
+      for (Map.Entry<String, Integer> term : document.getValue().entrySet())
+        copyOnWrite(newPostings, copied, term.getKey()).put(document.getKey(), term.getValue());
+    }
+    return new SearchIndex(newPostings, newDocuments);
+  }
+
+  /**
+   * The postings are written against a table of URIs, as each URI 
+   * appears under many terms; the documents are derived from them on reading.
+   */
+  void writeTo(DataOutput out) throws IOException {
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    out.writeInt(documents.size());
+    for (String uri : documents.keySet()) {
+      ids.put(uri, ids.size());
+      out.writeUTF(uri);
+    }
+    out.writeInt(postings.size());
+    for (Map.Entry<String, Map<String, Integer>> term : postings.entrySet()) {
+      out.writeUTF(term.getKey());
+      out.writeInt(term.getValue().size());
+      for (Map.Entry<String, Integer> posting : term.getValue().entrySet()) {
+        out.writeInt(ids.get(posting.getKey()));
+        out.writeInt(posting.getValue());
+      }
+    }
+  }
+
+  static SearchIndex readFrom(DataInput in) throws IOException {
+    String[] uris = new String[in.readInt()];
+    Map<String, Map<String, Integer>> documents = new HashMap<String, Map<String, Integer>>();
+    for (int i = 0; i < uris.length; i++) {
+      uris[i] = in.readUTF();
+      documents.put(uris[i], new HashMap<String, Integer>());
+    }
+    TreeMap<String, Map<String, Integer>> postings = new TreeMap<String, Map<String, Integer>>();
+    for (int i = in.readInt(); i > 0; i--) {
+      String term = in.readUTF();
+      Map<String, Integer> posting = new HashMap<String, Integer>();
+      for (int j = in.readInt(); j > 0; j--) {
+        String uri = uris[in.readInt()];
+        Integer weight = Integer.valueOf(in.readInt());
+        posting.put(uri, weight);
+        documents.get(uri).put(term, weight);
+      }
+      postings.put(term, posting);
+    }
+    return new SearchIndex(postings, documents);
+  }
+
+  private static Map<String, Integer> copyOnWrite(TreeMap<String, Map<String, Integer>> postings, 
+      Set<String> copied, String term) {
+    Map<String, Integer> posting = postings.get(term);
+    if (!copied.contains(term)) {
+      posting = posting == null ? new HashMap<String, Integer>() : new HashMap<String, Integer>(posting);
+      postings.put(term, posting);
+      copied.add(term);
+    }
+    return posting;
+  }
+
+  /**
+   * @param subject the entity to index, null for all of them
+   */
+  private static void addField(Map<String, Map<String, Integer>> documents, GabotoSnapshot snapshot, 
+      Resource subject, Property property, int weight) {
+    StmtIterator statements = snapshot.getModel().listStatements(subject, property, (RDFNode)null);
+    try {
+      while (statements.hasNext()) {
+        Statement statement = statements.nextStatement();
+        if (statement.getSubject().isURIResource() && statement.getObject().isLiteral())
+          addText(documents, statement.getSubject().getURI(), 
+              ((Literal)statement.getObject()).getLexicalForm(), weight);
+      }
+    } finally {
+      statements.close();
+    }
+  }
+
+  /**
+   * Index every literal of each vCard:adr, eg street-address and locality.
+   */
+  private static void addAddresses(Map<String, Map<String, Integer>> documents, GabotoSnapshot snapshot, 
+      Resource subject) {
+    StmtIterator addresses = snapshot.getModel().listStatements(subject, VCardVocab.adr, (RDFNode)null);
+    try {
+      while (addresses.hasNext()) {
+        Statement address = addresses.nextStatement();
+        if (!address.getSubject().isURIResource() || !address.getObject().isResource())
+          continue;
+        StmtIterator fields = snapshot.getModel().listStatements((Resource)address.getObject(), null, (RDFNode)null);
+        try {
+          while (fields.hasNext()) {
+            Statement field = fields.nextStatement();
+            if (field.getObject().isLiteral())
+              addText(documents, address.getSubject().getURI(), 
+                  ((Literal)field.getObject()).getLexicalForm(), ADDRESS_WEIGHT);
+          }
+        } finally {
+          fields.close();
+        }
+      }
+    } finally {
+      addresses.close();
+    }
+  }
+
+  private static void addText(Map<String, Map<String, Integer>> documents, String uri, String text, int weight) {
+    Map<String, Integer> terms = documents.get(uri);
+    if (terms == null) {
+      terms = new HashMap<String, Integer>();
+      documents.put(uri, terms);
+    }
+    for (String term : tokenize(text)) {
+      Integer existing = terms.get(term);
+      if (existing == null || existing.intValue() < weight)
+        terms.put(term, Integer.valueOf(weight));
+    }
+  }
+
+  /**
+   * @return the lower cased words of the text, split at anything but a letter or digit
+   */
+  static List<String> tokenize(String text) {
+    List<String> terms = new ArrayList<String>();
+    StringBuilder term = new StringBuilder();
+    for (int i = 0; i <= text.length(); i++) {
+      if (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+        term.append(Character.toLowerCase(text.charAt(i)));
+      } else if (term.length() > 0) {
+        terms.add(term.toString());
+        term.setLength(0);
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * @param terms the words searched for, eg "wolf coll"
+   * @param offset the number of results to skip
+   * @param limit the most results to return, -1 for no limit
+   * @return the URIs of the entities matching every word, best first
+   */
+  List<String> search(String terms, int offset, int limit) {
+    List<String> words = new ArrayList<String>(new LinkedHashSet<String>(tokenize(terms)));
+    if (words.isEmpty())
+      return Collections.emptyList();
+
+    final Map<String, Integer> scores = new HashMap<String, Integer>();
+    for (int i = 0; i < words.size(); i++) {
+      Map<String, Integer> wordScores = score(words.get(i));
+      if (i == 0) {
+        scores.putAll(wordScores);
+      } else {
+        scores.keySet().retainAll(wordScores.keySet());
+        for (Map.Entry<String, Integer> score : scores.entrySet())
+          score.setValue(Integer.valueOf(score.getValue().intValue() + wordScores.get(score.getKey()).intValue()));
+      }
+      if (scores.isEmpty())
+        return Collections.emptyList();
+    }
+
+    String[] ranked = scores.keySet().toArray(new String[scores.size()]);
+    Arrays.sort(ranked, new Comparator<String>() {
+      public int compare(String a, String b) {
+        int byScore = scores.get(b).compareTo(scores.get(a));
+        return byScore != 0 ? byScore : a.compareTo(b);
+      }
+    });
+    int from = Math.min(offset, ranked.length);
+    int to = limit == -1 ? ranked.length : (int)Math.min((long)from + limit, ranked.length);
+    return Arrays.asList(ranked).subList(from, to);
+  }
+
+  /**
+   * @return the best score of each entity with a term starting with the word
+   */
+  private Map<String, Integer> score(String word) {
+    Map<String, Integer> scores = new HashMap<String, Integer>();
+    SortedMap<String, Map<String, Integer>> matches = postings.subMap(word, word + Character.MAX_VALUE);
+    for (Map.Entry<String, Map<String, Integer>> match : matches.entrySet()) {
+      // An exact match counts double
+      int factor = match.getKey().equals(word) ? 2 : 1;
+      for (Map.Entry<String, Integer> posting : match.getValue().entrySet()) {
+        int score = posting.getValue().intValue() * factor;
+        Integer best = scores.get(posting.getKey());
+        if (best == null || best.intValue() < score)
+          scores.put(posting.getKey(), Integer.valueOf(score));
+      }
+    }
+    return scores;
+  }
+
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.time.TimeInstant;
+
+/**
+ * A bounded cache of snapshots keyed by data directory and time instant.
+ * 
+ * The least recently used snapshot is evicted once the cache is full. 
+ * Concurrent misses on the same key wait for a single build rather than 
+ * each building their own snapshot.
+ * 
+ * Writes to a data directory are cheap to record: the time dimension 
+ * index is recreated once, before the next snapshot is built, however 
+ * many writes there were since the last, and that snapshot updates the 
+ * indexes of the last rather than building its own.
+ * 
+ */
+public final class SnapshotCache {
+
+  private final TimeInstant defaultInstant;
+  private final Map<String, FutureTask<CachedSnapshot>> entries;
+  private final Map<String, Long> versions = new HashMap<String, Long>();
+  private final Map<String, Long> lastModified = new HashMap<String, Long>();
+  private final Map<String, Changes> changes = new HashMap<String, Changes>();
+  private final Set<String> staleTimeDimensions = new HashSet<String>();
+
+  /**
+   * What the next snapshot of a data directory can reuse from the last, 
+   * which is held only until then.
+   */
+  private static final class Changes {
+    private final CachedSnapshot previous;
+    private final Set<String> subjects = new HashSet<String>();
+
+    Changes(CachedSnapshot previous, Collection<String> subjects) {
+      this.previous = previous;
+      this.subjects.addAll(subjects);
+    }
+  }
+
+  /**
+   * @param defaultInstant the instant to use when none is requested
+   * @param maxSize the number of snapshots to hold before evicting 
+   */
+  public SnapshotCache(TimeInstant defaultInstant, final int maxSize) {
+    if (maxSize < 1)
+      throw new IllegalArgumentException("Snapshot cache size must be positive: " + maxSize);
+    this.defaultInstant = defaultInstant;
+    this.entries = new LinkedHashMap<String, FutureTask<CachedSnapshot>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FutureTask<CachedSnapshot>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param dataDirectory the store to take the snapshot of
+   * @param instant the time of the snapshot, null for the default
+   * @return the cached snapshot, built if necessary
+   */
+  public CachedSnapshot get(final String dataDirectory, TimeInstant instant) {
+    final TimeInstant snapshotInstant = instant == null ? defaultInstant : instant;
+    String key = key(dataDirectory, instant);
+    FutureTask<CachedSnapshot> task;
+    boolean building = false;
+    synchronized (this) {
+      task = entries.get(key);
+      if (task == null) {
+        final long version = getVersion(dataDirectory);
+        final Changes since = instant == null ? changes.remove(dataDirectory) : null;
+        task = new FutureTask<CachedSnapshot>(new Callable<CachedSnapshot>() {
+          public CachedSnapshot call() {
+            refreshTimeDimension(dataDirectory);
+            GabotoSnapshot snapshot = GabotoStores.getSnapshot(dataDirectory, snapshotInstant);
+            if (since == null)
+              return new CachedSnapshot(dataDirectory, snapshot, version);
+            return new CachedSnapshot(dataDirectory, snapshot, version, since.previous, since.subjects);
+          }
+        });
+        entries.put(key, task);
+        building = true;
+      }
+    }
+    if (building)
+      task.run();
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      synchronized (this) {
+        if (entries.get(key) == task)
+          entries.remove(key);
+      }
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Discard all snapshots of a data directory, typically because it 
+   * has been written to. 
+   * 
+   * Builds already in progress are not cached.
+   */
+  public synchronized void invalidate(String dataDirectory) {
+    invalidate(dataDirectory, null);
+  }
+
+  /**
+   * Discard all snapshots of a data directory which has been written to, 
+   * keeping what the next default snapshot can update rather than rebuild, 
+   * and mark its time dimension index as needing to be recreated.
+   * 
+   * @param changedSubjects the URIs of the entities written to, 
+   *        null if not known
+   */
+  public synchronized void invalidate(String dataDirectory, Collection<String> changedSubjects) {
+    Changes pending = changes.remove(dataDirectory);
+    if (changedSubjects != null) {
+      if (pending != null) {
+        // No snapshot was built since the last write, so carry its changes forward
+        pending.subjects.addAll(changedSubjects);
+        changes.put(dataDirectory, pending);
+      } else {
+        CachedSnapshot previous = peek(entries.get(key(dataDirectory, null)));
+        if (previous != null)
+          changes.put(dataDirectory, new Changes(previous, changedSubjects));
+      }
+    }
+    staleTimeDimensions.add(dataDirectory);
+    versions.put(dataDirectory, new Long(getVersion(dataDirectory) + 1));
+    lastModified.put(dataDirectory, new Long(System.currentTimeMillis()));
+    String prefix = key(dataDirectory, null);
+    Iterator<String> keys = entries.keySet().iterator();
+    while (keys.hasNext())
+      if (keys.next().startsWith(prefix))
+        keys.remove();
+  }
+
+  /**
+   * Recreate the time dimension index of a data directory if it has been 
+   * written to since it was last recreated. 
+   * 
+   * Writers hold the lock on the Gaboto while reading into it, so a 
+   * snapshot is never taken of a half recreated index, and a build 
+   * which finds the index being recreated waits for it.
+   */
+  private void refreshTimeDimension(String dataDirectory) {
+    Gaboto gaboto = GabotoStores.getGaboto(dataDirectory);
+    synchronized (gaboto) {
+      synchronized (this) {
+        if (!staleTimeDimensions.remove(dataDirectory))
+          return;
+      }
+      boolean recreated = false;
+      try {
+        gaboto.recreateTimeDimensionIndex();
+        recreated = true;
+      } finally {
+        if (!recreated)
+          synchronized (this) {
+            staleTimeDimensions.add(dataDirectory);
+          }
+      }
+    }
+  }
+
+  private static CachedSnapshot peek(FutureTask<CachedSnapshot> task) {
+    if (task == null || !task.isDone())
+      return null;
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the number of times the data directory has been invalidated
+   */
+  public synchronized long getVersion(String dataDirectory) {
+    Long version = versions.get(dataDirectory);
+    return version == null ? 0 : version.longValue();
+  }
+
+  /**
+   * @return when the data directory was last invalidated, 
+   *         0 if it has not been since we started
+   */
+  public synchronized long getLastModified(String dataDirectory) {
+    Long time = lastModified.get(dataDirectory);
+    return time == null ? 0 : time.longValue();
+  }
+
+  /**
+   * Snapshots of the default instant are keyed separately, as 
+   * <code>TimeInstant.from</code> returns a new instance on each call.
+   */
+  private static String key(String dataDirectory, TimeInstant instant) {
+    return dataDirectory + "\n" + (instant == null ? "" : instant.toString());
+  }
+
+}
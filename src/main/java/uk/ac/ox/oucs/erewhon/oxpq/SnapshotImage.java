@@ -0,0 +1,223 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The indexes derived from a datastore, saved next to it so that a restart 
+ * can map them back in rather than rebuild them.
+ * 
+ * The image records a fingerprint of the files in the data directory, and 
+ * is only used while they are unchanged. The snapshot and its entities 
+ * still come from the store; the image holds the code, adjacency, search, 
+ * geo and autosuggest indexes, which are keyed by URI.
+ * 
+ */
+final class SnapshotImage {
+
+  private static final int MAGIC = 0x4f58504f;
+  private static final int FORMAT = 2;
+  private static final String SUFFIX = ".oxpq-image";
+
+  private final File file;
+
+  /**
+   * @param dataDirectory the datastore the image is derived from
+   */
+  SnapshotImage(String dataDirectory) {
+    File dir = new File(dataDirectory).getAbsoluteFile();
+    this.file = new File(dir.getParentFile(), dir.getName() + SUFFIX);
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * @return a digest of the name, length and modification time of every 
+   *         file in the data directory
+   */
+  static String fingerprint(String dataDirectory) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      File dir = new File(dataDirectory).getAbsoluteFile();
+      addToFingerprint(digest, dir, "");
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest())
+        hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void addToFingerprint(MessageDigest digest, File dir, String prefix) {
+    String[] names = dir.list();
+    if (names == null)
+      return;
+    Arrays.sort(names);
+    for (String name : names) {
+      File file = new File(dir, name);
+      if (file.isDirectory())
+        addToFingerprint(digest, file, prefix + name + "/");
+      else {
+        try {
+          digest.update((prefix + name + "\t" + file.length() + "\t" + file.lastModified() + "\n").getBytes("UTF-8"));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Save the indexes of a snapshot, building any not yet built. 
+   * 
+   * The image is written to a temporary file and renamed into place, so a 
+   * reader never sees a partial image.
+   */
+  void write(CachedSnapshot cached, String fingerprint) throws IOException {
+    File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT);
+      out.writeUTF(fingerprint);
+      cached.getCodeIndex().writeTo(out);
+      cached.getAdjacencyIndex().writeTo(out);
+      cached.getSearchIndex().writeTo(out);
+      cached.getGeoIndex().writeTo(out);
+      cached.getAutosuggestIndex().writeTo(out);
+    } finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete())
+      throw new IOException("Could not replace " + file);
+    if (!temporary.renameTo(file))
+      throw new IOException("Could not rename " + temporary + " to " + file);
+  }
+
+  /**
+   * Give a snapshot the indexes saved in the image.
+   * 
+   * Every index is read before any is given to the snapshot, so an 
+   * image found corrupt part way through leaves the snapshot untouched.
+   * 
+   * @return false, leaving the snapshot to build its own indexes, if there 
+   *         is no image or it was made from different data
+   */
+  boolean restore(CachedSnapshot cached, String fingerprint) {
+    if (!file.isFile())
+      return false;
+    try {
+      FileInputStream stream = new FileInputStream(file);
+      try {
+        FileChannel channel = stream.getChannel();
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT || !in.readUTF().equals(fingerprint))
+          return false;
+        CodeIndex codes = CodeIndex.readFrom(in);
+        AdjacencyIndex adjacency = AdjacencyIndex.readFrom(in);
+        SearchIndex search = SearchIndex.readFrom(in);
+        GeoIndex geo = GeoIndex.readFrom(in);
+        AutosuggestIndex autosuggest = AutosuggestIndex.readFrom(in);
+        cached.restore(codes, adjacency, autosuggest, geo, search);
+        return true;
+      } finally {
+        stream.close();
+      }
+    } catch (IOException e) {
+      System.err.println("Ignoring unreadable image " + file + ": " + e);
+      return false;
+    } catch (RuntimeException e) {
+      System.err.println("Ignoring corrupt image " + file + ": " + e);
+      return false;
+    }
+  }
+
+  static void writeStrings(DataOutput out, Collection<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    for (String string : strings)
+      out.writeUTF(string);
+  }
+
+  static List<String> readStrings(DataInput in) throws IOException {
+    int size = in.readInt();
+    List<String> strings = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++)
+      strings.add(in.readUTF());
+    return strings;
+  }
+
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining())
+        return -1;
+      int read = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, read);
+      return read;
+    }
+  }
+
+}
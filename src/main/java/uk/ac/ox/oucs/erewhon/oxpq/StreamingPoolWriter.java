@@ -0,0 +1,123 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.node.GabotoEntity;
+import net.sf.gaboto.node.pool.EntityPool;
+import net.sf.gaboto.transformation.EntityPoolTransformer;
+
+/**
+ * Writes an EntityPool to a Writer an entity at a time.
+ * 
+ * The Gaboto transformers only render a whole pool to a String. Here each 
+ * entity is rendered as a pool of its own, and the envelope which the 
+ * transformer puts around every pool, found by rendering an empty pool, 
+ * is written only once. Only one entity's output is held at a time and 
+ * the first entity reaches the client before the rest are rendered.
+ * 
+ * Transformations which depend on the whole pool, such as ordering or 
+ * folders, must not be streamed.
+ * 
+ */
+final class StreamingPoolWriter {
+
+  private final EntityPoolTransformer transformer;
+  private final String separator;
+
+  /**
+   * @param transformer the transformer to render each entity with
+   * @param separator what the transformer puts between entities, 
+   *          eg a comma for a JSON array
+   */
+  StreamingPoolWriter(EntityPoolTransformer transformer, String separator) {
+    this.transformer = transformer;
+    this.separator = separator;
+  }
+
+  void write(EntityPool pool, Gaboto gaboto, GabotoSnapshot snapshot, Writer out) throws IOException {
+    String envelope = transformer.transform(new EntityPool(gaboto, snapshot));
+    String head = null;
+    String tail = null;
+    for (GabotoEntity entity : pool.getEntities()) {
+      EntityPool single = new EntityPool(gaboto, snapshot);
+      single.addEntity(entity);
+      String rendered = transformer.transform(single);
+      if (head == null) {
+        int split = split(envelope, rendered);
+        if (split == -1) {
+          // Nothing written yet, so we can still give the transformer the whole pool
+          out.write(transformer.transform(pool));
+          return;
+        }
+        head = envelope.substring(0, split);
+        tail = envelope.substring(split);
+        out.write(head);
+        out.write(rendered, head.length(), rendered.length() - envelope.length());
+        out.flush();
+      } else {
+        if (rendered.length() < envelope.length() || !rendered.startsWith(head) || !rendered.endsWith(tail))
+          throw new IllegalStateException("Entity " + entity.getUri() + " was not rendered within the pool envelope");
+        out.write(separator);
+        out.write(rendered, head.length(), rendered.length() - envelope.length());
+      }
+    }
+    if (head == null)
+      out.write(envelope);
+    else
+      out.write(tail);
+  }
+
+  /**
+   * Find where the entity sits within the envelope.
+   * 
+   * @return the length of the envelope head, or -1 if the rendered entity 
+   *         is not enclosed by the envelope
+   */
+  static int split(String envelope, String rendered) {
+    if (rendered.length() < envelope.length())
+      return -1;
+    int common = 0;
+    while (common < envelope.length() && envelope.charAt(common) == rendered.charAt(common))
+      common++;
+    for (int split = common; split >= 0; split--)
+      if (rendered.endsWith(envelope.substring(split)))
+        return split;
+    return -1;
+  }
+
+}
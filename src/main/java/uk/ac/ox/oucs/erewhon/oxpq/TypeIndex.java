@@ -0,0 +1,103 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.node.GabotoEntity;
+import net.sf.gaboto.node.pool.EntityPool;
+import net.sf.gaboto.node.pool.EntityPoolConfiguration;
+
+/**
+ * The entities of a snapshot by type URI, each type loaded from the 
+ * model once.
+ * 
+ * The pools returned are shared between requests and must not be 
+ * changed; a union of several types is a new pool holding the same 
+ * entities.
+ * 
+ */
+final class TypeIndex {
+
+  private final GabotoSnapshot snapshot;
+  private final Map<String, EntityPool> types = new ConcurrentHashMap<String, EntityPool>();
+  private final Lazy<EntityPool> all = new Lazy<EntityPool>() {
+    @Override
+    protected EntityPool build() {
+      return EntityPool.createFrom(snapshot);
+    }
+  };
+
+  TypeIndex(GabotoSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * @return every entity in the snapshot
+   */
+  EntityPool getAll() {
+    return all.get();
+  }
+
+  /**
+   * @return the entities of the given type
+   */
+  EntityPool get(String typeURI) {
+    EntityPool pool = types.get(typeURI);
+    if (pool == null) {
+      EntityPoolConfiguration conf = new EntityPoolConfiguration(snapshot);
+      conf.addAcceptedType(typeURI);
+      pool = EntityPool.createFrom(conf);
+      // Two threads may both load a type; either pool will do
+      types.put(typeURI, pool);
+    }
+    return pool;
+  }
+
+  /**
+   * @return the entities of any of the given types
+   */
+  EntityPool get(Collection<String> typeURIs) {
+    if (typeURIs.size() == 1)
+      return get(typeURIs.iterator().next());
+    EntityPool union = new EntityPool(snapshot.getGaboto(), snapshot);
+    for (String typeURI : typeURIs)
+      for (GabotoEntity entity : get(typeURI).getEntities())
+        union.add(entity);
+    return union;
+  }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.node.GabotoEntity;
+
+import com.hp.hpl.jena.rdf.model.Property;
+
+/**
+ * Times looking up a request's worth of codes in a {@link CodeIndex} 
+ * against asking the snapshot for the entities with each code, as the 
+ * lookups did before the index.
+ * 
+ * Run with mvn test -Pbenchmark.
+ * 
+ */
+public class CodeIndexBenchmark extends TestCase {
+
+  private static final String DATA_DIRECTORY = "memory:codes-benchmark";
+  private static final int UNITS = 5000;
+  private static final int LOOKUPS = 100;
+
+  private GabotoSnapshot snapshot;
+
+  @Override
+  protected void setUp() {
+    snapshot = TestStore.snapshot(TestStore.create(DATA_DIRECTORY, UNITS));
+  }
+
+  @Override
+  protected void tearDown() {
+    GabotoStores.unregister(DATA_DIRECTORY);
+  }
+
+  private static String code(int i) {
+    return "unit" + i * (UNITS / LOOKUPS);
+  }
+
+  public void testIndexedLookupAgainstScan() {
+    Property coding = Query.getPropertyFromAbbreviation("hasOUCSCode");
+    long start = System.nanoTime();
+    List<String> scanned = new ArrayList<String>();
+    for (int i = 0; i < LOOKUPS; i++)
+      for (GabotoEntity entity : snapshot.loadEntitiesWithProperty(coding, code(i)))
+        scanned.add(entity.getUri());
+    long scanning = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    CodeIndex index = CodeIndex.build(snapshot);
+    long building = System.nanoTime() - start;
+    List<String> found = new ArrayList<String>();
+    for (int i = 0; i < LOOKUPS; i++)
+      found.addAll(index.lookup("hasOUCSCode", code(i)));
+    long indexed = System.nanoTime() - start - building;
+
+    assertEquals(scanned, found);
+    System.out.println("Scanned for " + LOOKUPS + " codes among " + UNITS + " units in " + scanning / 1000000 
+        + "ms, built the index in " + building / 1000000 + "ms and looked them up in " + indexed / 1000 + "us");
+  }
+
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.vocabulary.OxPointsVocab;
+
+/**
+ * Lookups in a {@link CodeIndex} built from the {@link TestStore}, and 
+ * in the index updated after codes are added.
+ * 
+ */
+public class CodeIndexTest extends TestCase {
+
+  private static final String DATA_DIRECTORY = "memory:codes";
+
+  private Gaboto gaboto;
+  private CodeIndex index;
+
+  @Override
+  protected void setUp() {
+    gaboto = TestStore.create(DATA_DIRECTORY, 20);
+    index = CodeIndex.build(TestStore.snapshot(gaboto));
+  }
+
+  @Override
+  protected void tearDown() {
+    GabotoStores.unregister(DATA_DIRECTORY);
+  }
+
+  public void testLookup() {
+    assertEquals(Collections.singletonList(TestStore.BALLIOL), index.lookup("hasOUCSCode", "balliol"));
+    assertEquals(Collections.singletonList(TestStore.EXETER), index.lookup("hasOLISCode", "EXE"));
+    assertEquals(Collections.singletonList(TestStore.OUCS), index.lookup("hasFinanceCode", "FA"));
+    assertEquals(Collections.singletonList(TestStore.unit(12)), index.lookup("hasOUCSCode", "unit12"));
+    assertEquals(Collections.singletonList(TestStore.unit(9)), index.lookup("hasOLISCode", "U9"));
+  }
+
+  public void testUnknownCodesFindNothing() {
+    assertTrue(index.lookup("hasOUCSCode", "nosuchunit").isEmpty());
+    assertTrue(index.lookup("hasOLISCode", "balliol").isEmpty());
+    assertTrue(index.lookup("hasOLISCode", "U10").isEmpty());
+    assertTrue(index.lookup("hasOBNCode", "1").isEmpty());
+  }
+
+  public void testUpdateReadsOnlyTheChangedEntities() {
+    String added = TestStore.unit(1000);
+    gaboto.read("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"" 
+        + " xmlns:oxp=\"" + Query.getPropertyFromAbbreviation("hasOLISCode").getNameSpace() + "\">" 
+        + "<rdf:Description rdf:about=\"" + TestStore.JESUS + "\"><oxp:hasOLISCode>JES</oxp:hasOLISCode></rdf:Description>"
+        + "<rdf:Description rdf:about=\"" + added + "\"><rdf:type rdf:resource=\"" + OxPointsVocab.NS + "Unit\"/>" 
+        + "<oxp:hasOUCSCode>added</oxp:hasOUCSCode>" 
+        + "<oxp:hasOLISCode>EXE</oxp:hasOLISCode></rdf:Description>"
+        + "</rdf:RDF>");
+    GabotoSnapshot snapshot = TestStore.snapshot(gaboto);
+    CodeIndex updated = index.update(snapshot, Arrays.asList(TestStore.JESUS, added));
+
+    assertEquals(Collections.singletonList(TestStore.JESUS), updated.lookup("hasOLISCode", "JES"));
+    assertEquals(Collections.singletonList(added), updated.lookup("hasOUCSCode", "added"));
+    assertEquals(Arrays.asList(TestStore.EXETER, added), updated.lookup("hasOLISCode", "EXE"));
+    assertEquals(Collections.singletonList(TestStore.JESUS), updated.lookup("hasOUCSCode", "jesus"));
+    assertEquals(Collections.singletonList(TestStore.BALLIOL), updated.lookup("hasOUCSCode", "balliol"));
+
+    // As if built afresh, and the index it was updated from is unchanged
+    CodeIndex built = CodeIndex.build(snapshot);
+    for (String[] code : new String[][] { { "hasOLISCode", "JES" }, { "hasOLISCode", "EXE" }, 
+        { "hasOUCSCode", "added" }, { "hasOUCSCode", "unit3" } })
+      assertEquals(built.lookup(code[0], code[1]), updated.lookup(code[0], code[1]));
+    assertTrue(index.lookup("hasOLISCode", "JES").isEmpty());
+    assertEquals(Collections.singletonList(TestStore.EXETER), index.lookup("hasOLISCode", "EXE"));
+  }
+
+  public void testWrittenIndexReadsBack() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    index.writeTo(out);
+    out.close();
+    CodeIndex read = CodeIndex.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(index.lookup("hasOUCSCode", "unit7"), read.lookup("hasOUCSCode", "unit7"));
+    assertEquals(index.lookup("hasOLISCode", "EXE"), read.lookup("hasOLISCode", "EXE"));
+    assertEquals(index.lookup("hasFinanceCode", "FA"), read.lookup("hasFinanceCode", "FA"));
+  }
+
+}
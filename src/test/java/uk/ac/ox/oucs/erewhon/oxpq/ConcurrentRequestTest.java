@@ -0,0 +1,188 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+/**
+ * Many requests with different paths, formats and parameters at once, 
+ * all served by one {@link OxPointsQueryServlet} from a small in-memory 
+ * store.
+ * 
+ * Each response must be the same as when the request is made alone. 
+ * The response cache is turned off so that every request is rendered.
+ * 
+ */
+public class ConcurrentRequestTest extends TestCase {
+
+  private static final String DATA_DIRECTORY = "memory:concurrent";
+
+  private static final int THREADS = 16;
+  private static final int ROUNDS = 50;
+
+  private static final String[] PATHS = {
+    "/all.json?limit=5",
+    "/all.kml",
+    "/all.json?limit=5&offset=10",
+    "/all.xml?orderBy=title&limit=20",
+    "/type/College.xml?orderBy=title",
+    "/type/College.json?fields=title&jsCallback=f",
+    "/type/College.json?has=hasOLISCode",
+    "/type/Unit.json?not=hasOLISCode&limit=10",
+    "/near/51.75,-1.25.json?radius=500",
+    "/near/51.75,-1.25.kml?radius=2000&limit=3",
+    "/bbox/51.7,-1.3,51.8,-1.2.json",
+    "/search/college.json?limit=20",
+    "/all.autosuggest?q=ba",
+    "/oucs:balliol.json",
+    "/oucs:oucs.json?depth=2",
+    "/olis:EXE.xml",
+    "/id/23232373.json",
+    "/isPartOf/oucs:oxford.json",
+    "/oucs:balliol/occupies.kml",
+    "/oucs:nowhere.json",
+  };
+
+  private Server server;
+  private String base;
+
+  @Override
+  protected void setUp() throws Exception {
+    OxPointsServlet.snapshots = null;
+    OxPointsServlet.responses = null;
+    TestStore.create(DATA_DIRECTORY, 200);
+
+    int port = freePort();
+    server = new Server(port);
+    Context context = new Context(server, "/", Context.NO_SESSIONS);
+    ServletHolder holder = new ServletHolder(new OxPointsQueryServlet());
+    holder.setInitParameter("dataDirectory", DATA_DIRECTORY);
+    holder.setInitParameter("warmup", "false");
+    holder.setInitParameter("responseCacheSize", "0");
+    context.addServlet(holder, "/OxPQ/*");
+    server.start();
+    base = "http://localhost:" + port + "/OxPQ";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+    GabotoStores.unregister(DATA_DIRECTORY);
+    OxPointsServlet.snapshots = null;
+    OxPointsServlet.responses = null;
+  }
+
+  public void testConcurrentResponsesMatchSerialOnes() throws Exception {
+    final String[] expected = new String[PATHS.length];
+    for (int i = 0; i < PATHS.length; i++)
+      expected[i] = fetch(PATHS[i]);
+    assertTrue(expected[0], expected[0].startsWith("200 "));
+    assertTrue(expected[PATHS.length - 1], expected[PATHS.length - 1].startsWith("404 "));
+
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int n = 0; n < ROUNDS * PATHS.length; n++) {
+        // Step through the paths so that neighbouring requests differ
+        final int i = (n * 7) % PATHS.length;
+        results.add(pool.submit(new Callable<String>() {
+          public String call() throws Exception {
+            start.await();
+            String got = fetch(PATHS[i]);
+            return got.equals(expected[i]) ? null : PATHS[i] + " gave " + got + " not " + expected[i];
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<String> result : results)
+        assertNull(result.get());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the status, content type and body of a response, or just the 
+   *         status of an error, whose page includes a stack trace
+   */
+  private String fetch(String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+    try {
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK)
+        return status + " " + path;
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      InputStream in = connection.getInputStream();
+      try {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1)
+          body.write(buffer, 0, count);
+      } finally {
+        in.close();
+      }
+      return status + " " + connection.getContentType() + "\n" + body.toString("UTF-8");
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static int freePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.node.GabotoEntity;
+import net.sf.gaboto.node.pool.EntityPool;
+import net.sf.gaboto.node.pool.EntityPoolConfiguration;
+import net.sf.gaboto.vocabulary.OxPointsVocab;
+
+import com.hp.hpl.jena.rdf.model.Property;
+
+/**
+ * Times /type/Unit?not=hasOLISCode filtered by {@link EntityFilter} 
+ * against the way it used to be done, loading the type twice and 
+ * removing entities from the second copy.
+ * 
+ * Run with mvn test -Pbenchmark.
+ * 
+ */
+public class EntityFilterBenchmark extends TestCase {
+
+  private static final String DATA_DIRECTORY = "memory:filter-benchmark";
+  private static final int UNITS = 3000;
+  private static final int RUNS = 20;
+
+  private Gaboto gaboto;
+  private GabotoSnapshot snapshot;
+  private final Property notProperty = Query.getPropertyFromAbbreviation("hasOLISCode");
+
+  @Override
+  protected void setUp() {
+    gaboto = TestStore.create(DATA_DIRECTORY, UNITS);
+    snapshot = TestStore.snapshot(gaboto);
+  }
+
+  @Override
+  protected void tearDown() {
+    GabotoStores.unregister(DATA_DIRECTORY);
+  }
+
+  private EntityPool loadUnits() {
+    EntityPoolConfiguration conf = new EntityPoolConfiguration(snapshot);
+    conf.addAcceptedType(OxPointsVocab.NS + "Unit");
+    return EntityPool.createFrom(conf);
+  }
+
+  private EntityPool doubleLoad() {
+    EntityPool p = loadUnits();
+    EntityPool p2 = loadUnits();
+    for (GabotoEntity e : p.getEntities()) 
+      if (e.getPropertyValue(notProperty, false, false) != null)
+        p2.removeEntity(e);
+    return p2;
+  }
+
+  private EntityPool filter() {
+    EntityFilter filter = new EntityFilter(new ArrayList<Property>(), 
+        Collections.singletonList(notProperty), false, false);
+    return filter.filter(loadUnits(), gaboto, snapshot);
+  }
+
+  private static Set<String> uris(EntityPool pool) {
+    Set<String> uris = new HashSet<String>();
+    for (GabotoEntity entity : pool.getEntities())
+      uris.add(entity.getUri());
+    return uris;
+  }
+
+  public void testFilterAgainstDoubleLoad() {
+    assertEquals(uris(doubleLoad()), uris(filter()));
+    assertEquals(UNITS - (UNITS + 2) / 3, filter().getSize());
+
+    long start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++)
+      doubleLoad();
+    long doubleLoad = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++)
+      filter();
+    long filtered = System.nanoTime() - start;
+    System.out.println("not= over " + UNITS + " units: double load " + doubleLoad / RUNS / 1000 
+        + "us, filter " + filtered / RUNS / 1000 + "us");
+  }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.node.GabotoEntity;
+import net.sf.gaboto.node.pool.EntityPool;
+
+import com.hp.hpl.jena.rdf.model.Property;
+
+/**
+ * How has= and not= parameters become an {@link EntityFilter}, and 
+ * which entities of the {@link TestStore} it keeps.
+ * 
+ */
+public class EntityFilterTest extends TestCase {
+
+  private static final String DATA_DIRECTORY = "memory:filter";
+  private static final String BALLIOL_SITE = TestStore.ID + "23233401";
+
+  private Gaboto gaboto;
+  private GabotoSnapshot snapshot;
+
+  @Override
+  protected void setUp() {
+    gaboto = TestStore.create(DATA_DIRECTORY, 0);
+    snapshot = TestStore.snapshot(gaboto);
+  }
+
+  @Override
+  protected void tearDown() {
+    GabotoStores.unregister(DATA_DIRECTORY);
+  }
+
+  private static List<Property> properties(String... names) {
+    List<Property> properties = new ArrayList<Property>();
+    for (String name : names)
+      properties.add(Query.getPropertyFromAbbreviation(name));
+    return properties;
+  }
+
+  private EntityPool pool(String... uris) {
+    EntityPool pool = new EntityPool(gaboto, snapshot);
+    for (String uri : uris)
+      pool.addEntity(snapshot.loadEntity(uri));
+    return pool;
+  }
+
+  private static Set<String> uris(EntityPool pool) {
+    Set<String> uris = new HashSet<String>();
+    for (GabotoEntity entity : pool.getEntities())
+      uris.add(entity.getUri());
+    return uris;
+  }
+
+  private static Query query(String path, String name, String... values) {
+    Map<String, String[]> parameters = new HashMap<String, String[]>();
+    if (name != null)
+      parameters.put(name, values);
+    return Query.fromPath(path, parameters);
+  }
+
+  public void testNoConditionsIsEmpty() {
+    assertTrue(EntityFilter.from(query("/type/College.json", null)).isEmpty());
+  }
+
+  public void testEveryValueIsACondition() {
+    Query query = query("/type/Unit.json", "not", "hasOUCSCode", "hasOLISCode");
+    assertEquals(Arrays.asList(Query.getPropertyFromAbbreviation("hasOUCSCode"), 
+        Query.getPropertyFromAbbreviation("hasOLISCode")), query.getNotProperties());
+    assertEquals(Collections.emptyList(), query.getHasProperties());
+    assertFalse(EntityFilter.from(query).isEmpty());
+  }
+
+  public void testHasAndNotCombine() {
+    Map<String, String[]> parameters = new HashMap<String, String[]>();
+    parameters.put("has", new String[] { "hasOUCSCode" });
+    parameters.put("not", new String[] { "hasOLISCode" });
+    Query query = Query.fromPath("/type/Unit.json", parameters);
+    assertEquals(1, query.getHasProperties().size());
+    assertEquals(1, query.getNotProperties().size());
+    assertFalse(EntityFilter.from(query).isEmpty());
+  }
+
+  public void testUnknownPropertyIsRejected() {
+    try {
+      query("/type/Unit.json", "has", "hasNoSuchCode");
+      fail();
+    } catch (AnticipatedException e) {
+      assertEquals(400, e.getHttpStatusCode());
+    }
+  }
+
+  public void testHasAndNotKeepAndDrop() {
+    EntityFilter filter = new EntityFilter(properties("hasOUCSCode"), properties("hasOLISCode"), false, false);
+    EntityPool pool = pool(TestStore.UNIVERSITY, TestStore.BALLIOL, TestStore.EXETER, TestStore.JESUS, 
+        TestStore.OUCS, BALLIOL_SITE);
+    assertEquals(new HashSet<String>(Arrays.asList(TestStore.UNIVERSITY, TestStore.JESUS, TestStore.OUCS)), 
+        uris(filter.filter(pool, gaboto, snapshot)));
+    // The pool filtered is left as it was
+    assertEquals(6, pool.getSize());
+  }
+
+  public void testEveryConditionMustHold() {
+    EntityFilter filter = new EntityFilter(properties("hasOUCSCode", "hasFinanceCode"), 
+        properties("hasOLISCode", "occupies"), false, false);
+    assertFalse(filter.accepts(snapshot.loadEntity(TestStore.OUCS)));
+    filter = new EntityFilter(properties("hasOUCSCode", "hasFinanceCode"), properties("hasOLISCode"), false, false);
+    assertTrue(filter.accepts(snapshot.loadEntity(TestStore.OUCS)));
+    assertFalse(filter.accepts(snapshot.loadEntity(TestStore.JESUS)));
+  }
+
+  public void testNotAloneDropsOnlyThoseWithTheProperty() {
+    EntityFilter filter = new EntityFilter(properties(), properties("occupies"), false, false);
+    EntityPool pool = pool(TestStore.UNIVERSITY, TestStore.BALLIOL, TestStore.OUCS, BALLIOL_SITE);
+    assertEquals(new HashSet<String>(Arrays.asList(TestStore.UNIVERSITY, BALLIOL_SITE)), 
+        uris(filter.filter(pool, gaboto, snapshot)));
+  }
+
+  public void testEmptyFilterKeepsEverything() {
+    EntityFilter filter = new EntityFilter(properties(), properties(), false, false);
+    assertTrue(filter.isEmpty());
+    assertEquals(4, filter.filter(pool(TestStore.UNIVERSITY, TestStore.BALLIOL, TestStore.OUCS, BALLIOL_SITE), 
+        gaboto, snapshot).getSize());
+  }
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Conversions through a shell script standing in for gpsbabel, which 
+ * does what the output format it is given names.
+ * 
+ */
+public class GPSBabelTest extends TestCase {
+
+  private File script;
+  private File lock;
+  private GPSBabel gpsbabel;
+
+  @Override
+  protected void setUp() throws IOException {
+    script = File.createTempFile("gpsbabel", ".sh");
+    lock = new File(script.getPath() + ".lock");
+    Writer writer = new FileWriter(script);
+    try {
+      // Called as: gpsbabel -i kml -o format -f - -F -
+      writer.write("#!/bin/sh\n"
+          + "case \"$4\" in\n"
+          + "  copy) cat ;;\n"
+          + "  fail) cat > /dev/null; echo 'Unknown output format' >&2; exit 3 ;;\n"
+          + "  hang) cat > /dev/null; exec sleep 60 ;;\n"
+          + "  noisy) head -c 1048576 /dev/zero | tr '\\000' x >&2; cat; exit 1 ;;\n"
+          + "  alone) mkdir '" + lock.getPath() + "' || exit 9; sleep 1; cat; rmdir '" + lock.getPath() + "' ;;\n"
+          + "esac\n");
+    } finally {
+      writer.close();
+    }
+    assertTrue(script.setExecutable(true));
+  }
+
+  @Override
+  protected void tearDown() {
+    if (gpsbabel != null)
+      gpsbabel.shutdown();
+    script.delete();
+    lock.delete();
+  }
+
+  private static GPSBabel.Input input(final String kml) {
+    return new GPSBabel.Input() {
+      public void writeTo(OutputStream stdin) throws IOException {
+        stdin.write(kml.getBytes("UTF-8"));
+      }
+    };
+  }
+
+  private String convert(String format) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    gpsbabel.convert("kml", format, input("<kml/>"), out);
+    return out.toString("UTF-8");
+  }
+
+  public void testOutputIsCopied() throws Exception {
+    gpsbabel = new GPSBabel(script.getPath(), 1, 10);
+    assertEquals("<kml/>", convert("copy"));
+  }
+
+  public void testFailureReportsStderr() throws Exception {
+    gpsbabel = new GPSBabel(script.getPath(), 1, 10);
+    try {
+      convert("fail");
+      fail();
+    } catch (AnticipatedException e) {
+      assertEquals(500, e.getHttpStatusCode());
+      assertTrue(e.getMessage(), e.getMessage().contains("Unknown output format"));
+    }
+  }
+
+  public void testHungProcessIsKilled() throws Exception {
+    gpsbabel = new GPSBabel(script.getPath(), 1, 1);
+    long start = System.currentTimeMillis();
+    try {
+      convert("hang");
+      fail();
+    } catch (AnticipatedException e) {
+      assertEquals(504, e.getHttpStatusCode());
+    }
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    // The permit was given back
+    assertEquals("<kml/>", convert("copy"));
+  }
+
+  public void testLargeStderrDoesNotBlock() throws Exception {
+    gpsbabel = new GPSBabel(script.getPath(), 1, 10);
+    try {
+      // Far more than a pipe holds, written before any output
+      convert("noisy");
+      fail();
+    } catch (AnticipatedException e) {
+      assertEquals(500, e.getHttpStatusCode());
+      assertTrue(e.getMessage().length() > 1048576);
+    }
+  }
+
+  public void testOnlyPermittedProcessesRun() throws Exception {
+    gpsbabel = new GPSBabel(script.getPath(), 1, 20);
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < 3; i++)
+        results.add(pool.submit(new Callable<String>() {
+          public String call() throws IOException {
+            return convert("alone");
+          }
+        }));
+      // A second process running at once would fail to take the lock
+      for (Future<String> result : results)
+        assertEquals("<kml/>", result.get());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  public void testFormatMustNotBeAnOption() throws Exception {
+    gpsbabel = new GPSBabel(script.getPath(), 1, 10);
+    try {
+      convert("-x");
+      fail();
+    } catch (AnticipatedException e) {
+      assertEquals(400, e.getHttpStatusCode());
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Which entities of the {@link TestStore} a {@link GeoIndex} finds, and 
+ * that a limit takes the first of them in a stable order.
+ * 
+ */
+public class GeoIndexTest extends TestCase {
+
+  private static final String DATA_DIRECTORY = "memory:geo";
+
+  private GeoIndex index;
+
+  @Override
+  protected void setUp() {
+    index = GeoIndex.build(TestStore.snapshot(TestStore.create(DATA_DIRECTORY, 300)));
+  }
+
+  @Override
+  protected void tearDown() {
+    GabotoStores.unregister(DATA_DIRECTORY);
+  }
+
+  public void testNearFindsThePoint() {
+    assertEquals(Collections.singletonList(TestStore.ID + "23233501"), index.near(51.7603, -1.2608, 10, -1));
+  }
+
+  public void testNearestComeFirst() {
+    List<String> all = index.near(51.75, -1.30, 2000, -1);
+    assertTrue(all.size() > 10);
+    assertEquals(all.subList(0, 10), index.near(51.75, -1.30, 2000, 10));
+    for (int i = 1; i < all.size(); i++)
+      assertTrue(distance(all.get(i - 1)) <= distance(all.get(i)));
+  }
+
+  public void testWithinIsOrderedByUri() {
+    List<String> all = index.within(51.7, -1.31, 51.8, -1.29, -1);
+    // Every generated building, none of the others
+    assertEquals(300, all.size());
+    List<String> sorted = new ArrayList<String>(all);
+    Collections.sort(sorted);
+    assertEquals(sorted, all);
+    assertEquals(all.subList(0, 25), index.within(51.7, -1.31, 51.8, -1.29, 25));
+  }
+
+  /**
+   * @return the distance from 51.75,-1.30 of a generated building
+   */
+  private static double distance(String uri) {
+    int i = Integer.parseInt(uri.substring(TestStore.ID.length())) - 31000000;
+    return GeoIndex.distance(51.75, -1.30, 51.70 + (i % 100) * 0.001, -1.30 + (i / 100) * 0.001);
+  }
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * How RDF/XML is split into batches, one entity to a batch where it 
+ * can be.
+ * 
+ */
+public class RDFIngestTest extends TestCase {
+
+  private static final String A = TestStore.ID + "23232401";
+  private static final String B = TestStore.ID + "23232402";
+  private static final String C = TestStore.ID + "23232403";
+
+  private static String document(String... descriptions) {
+    StringBuilder rdf = new StringBuilder("<?xml version=\"1.0\"?>\n"
+        + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n"
+        + "    xmlns:dc=\"http://purl.org/dc/elements/1.1/\"\n"
+        + "    xmlns:v=\"http://www.w3.org/2006/vcard/ns#\">\n");
+    for (String description : descriptions)
+      rdf.append(description).append('\n');
+    return rdf.append("</rdf:RDF>\n").toString();
+  }
+
+  private static String entity(String uri, String title, String address) {
+    return "<rdf:Description rdf:about=\"" + uri + "\"><dc:title>" + title + "</dc:title>" 
+        + (address == null ? "" : "<v:adr rdf:nodeID=\"" + address + "\"/>") + "</rdf:Description>";
+  }
+
+  private static String address(String nodeID, String street) {
+    return "<rdf:Description rdf:nodeID=\"" + nodeID + "\"><v:street-address>" + street 
+        + "</v:street-address></rdf:Description>";
+  }
+
+  private static List<RDFIngest.Batch> read(String rdf) throws IOException {
+    final List<RDFIngest.Batch> batches = new ArrayList<RDFIngest.Batch>();
+    new RDFIngest(1).read(new ByteArrayInputStream(rdf.getBytes("UTF-8")), RDFIngest.RDF_XML, 
+        new RDFIngest.Loader() {
+          public void load(RDFIngest.Batch batch) {
+            batches.add(batch);
+          }
+        });
+    return batches;
+  }
+
+  public void testOneEntityToABatch() throws Exception {
+    List<RDFIngest.Batch> batches = read(document(
+        entity(A, "Balliol", null), entity(B, "Exeter", null), entity(C, "Jesus", null)));
+    assertEquals(3, batches.size());
+    assertEquals(Arrays.asList(A), new ArrayList<String>(batches.get(0).getSubjects()));
+    assertEquals(Arrays.asList(C), new ArrayList<String>(batches.get(2).getSubjects()));
+  }
+
+  public void testAddressFollowingItsEntityIsInItsBatch() throws Exception {
+    List<RDFIngest.Batch> batches = read(document(
+        entity(A, "Balliol", "a1"), address("a1", "Broad Street"), entity(B, "Exeter", null)));
+    assertEquals(2, batches.size());
+    assertEquals(Arrays.asList(A), new ArrayList<String>(batches.get(0).getSubjects()));
+    assertEquals(2, batches.get(0).getEntities());
+    assertEquals(3, batches.get(0).getStatements());
+    assertTrue(batches.get(0).getRdf().contains("Broad Street"));
+    assertEquals(Arrays.asList(B), new ArrayList<String>(batches.get(1).getSubjects()));
+  }
+
+  public void testAddressBeforeItsEntityIsInItsBatch() throws Exception {
+    List<RDFIngest.Batch> batches = read(document(
+        entity(A, "Balliol", null), address("a2", "Turl Street"), entity(B, "Exeter", "a2"), 
+        entity(C, "Jesus", null)));
+    assertEquals(3, batches.size());
+    assertEquals(Arrays.asList(B), new ArrayList<String>(batches.get(1).getSubjects()));
+    assertTrue(batches.get(1).getRdf().contains("Turl Street"));
+    assertEquals(3, batches.get(1).getStatements());
+  }
+
+  public void testNestedAddressNeedsNoDescriptionElsewhere() throws Exception {
+    List<RDFIngest.Batch> batches = read(document(
+        "<rdf:Description rdf:about=\"" + A + "\"><v:adr><rdf:Description rdf:nodeID=\"a3\">" 
+            + "<v:street-address>Broad Street</v:street-address></rdf:Description></v:adr></rdf:Description>", 
+        entity(B, "Exeter", null)));
+    assertEquals(2, batches.size());
+  }
+
+  public void testAddressSharedAcrossBatchesIsRejected() throws Exception {
+    try {
+      read(document(entity(A, "Balliol", "a4"), address("a4", "Broad Street"), 
+          entity(B, "Exeter", null), entity(C, "Jesus", "a4")));
+      fail();
+    } catch (AnticipatedException e) {
+      assertEquals(400, e.getHttpStatusCode());
+    }
+  }
+
+}
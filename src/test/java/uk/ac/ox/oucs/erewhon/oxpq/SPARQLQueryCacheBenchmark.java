@@ -0,0 +1,79 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import junit.framework.TestCase;
+
+import com.hp.hpl.jena.query.QueryFactory;
+
+/**
+ * Times parsing a SPARQL template every time against taking it from 
+ * the cache behind {@link SPARQLExecutor#parse}, as repeated requests 
+ * of the same template do.
+ * 
+ * Run with mvn test -Pbenchmark.
+ * 
+ */
+public class SPARQLQueryCacheBenchmark extends TestCase {
+
+  private static final int REPEATS = 2000;
+
+  private SPARQLExecutor executor;
+
+  @Override
+  protected void setUp() {
+    executor = new SPARQLExecutor(1, 1, 1000, 500, 16);
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdown();
+  }
+
+  public void testHitsSaveParsing() {
+    String template = SPARQLQueryCacheTest.TEMPLATE;
+    executor.parse(template);
+    long start = System.nanoTime();
+    for (int i = 0; i < REPEATS; i++)
+      QueryFactory.create(SPARQLQueryCache.normalise(template));
+    long parsing = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < REPEATS; i++)
+      executor.parse(template);
+    long cached = System.nanoTime() - start;
+    assertEquals(REPEATS, executor.getQueryCache().getHits());
+    System.out.println("Parsed " + REPEATS + " queries in " + parsing / 1000000 + "ms, " 
+        + "took them from the cache in " + cached / 1000000 + "ms");
+  }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import junit.framework.TestCase;
+
+import com.hp.hpl.jena.query.Query;
+
+/**
+ * The parsed query cache behind {@link SPARQLExecutor#parse}.
+ * 
+ */
+public class SPARQLQueryCacheTest extends TestCase {
+
+  static final String TEMPLATE = 
+      "PREFIX oxp: <http://ns.ox.ac.uk/namespace/oxpoints/2009/02/owl#>\n" 
+    + "PREFIX dc: <http://purl.org/dc/elements/1.1/>\n" 
+    + "SELECT ?college ?title WHERE {\n" 
+    + "  ?college a oxp:College ;\n" 
+    + "    dc:title ?title .\n" 
+    + "} ORDER BY ?title";
+
+  private static final int REPEATS = 100;
+
+  private SPARQLExecutor executor;
+
+  @Override
+  protected void setUp() {
+    executor = new SPARQLExecutor(1, 1, 1000, 500, 16);
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdown();
+  }
+
+  public void testSameTemplateIsParsedOnce() {
+    Query first = executor.parse(TEMPLATE);
+    Query second = executor.parse("  " + TEMPLATE.replace("\n", "\r\n    ") + "\n\n");
+    assertSame(first, second);
+    assertEquals(1, executor.getQueryCache().getMisses());
+    assertEquals(1, executor.getQueryCache().getHits());
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() {
+    SPARQLQueryCache cache = new SPARQLQueryCache(2);
+    Query a = new Query();
+    cache.put("a", a);
+    cache.put("b", new Query());
+    assertSame(a, cache.get("a"));
+    cache.put("c", new Query());
+    assertSame(a, cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  public void testStringLiteralWhitespaceIsKept() {
+    String query = "SELECT ?s WHERE {\n  ?s ?p \"\"\"two\n  lines\"\"\"\n}";
+    assertEquals(query, SPARQLQueryCache.normalise(query));
+  }
+
+  public void testRepeatsAreHits() {
+    for (int i = 0; i < REPEATS; i++)
+      executor.parse(TEMPLATE);
+    assertEquals(REPEATS - 1, executor.getQueryCache().getHits());
+    assertEquals(1, executor.getQueryCache().getMisses());
+  }
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2009 University of Oxford
+ *
+ * Written for the Erewhon Project
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *  - Neither the name of the University of Oxford nor the names of its 
+ *    contributors may be used to endorse or promote products derived from this 
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE 
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.ox.oucs.erewhon.oxpq;
+
+import java.util.Calendar;
+
+import com.hp.hpl.jena.rdf.model.Property;
+
+import net.sf.gaboto.Gaboto;
+import net.sf.gaboto.GabotoFactory;
+import net.sf.gaboto.GabotoSnapshot;
+import net.sf.gaboto.time.TimeInstant;
+import net.sf.gaboto.vocabulary.DCTermsVocab;
+import net.sf.gaboto.vocabulary.DCVocab;
+import net.sf.gaboto.vocabulary.GeoVocab;
+import net.sf.gaboto.vocabulary.OxPointsVocab;
+
+/**
+ * A small OxPoints store held in memory, registered as a data directory 
+ * with {@link GabotoStores} so that servlets and snapshot caches can be 
+ * pointed at it.
+ * 
+ * The university has three colleges and Computing Services, each 
+ * occupying a building of its own, and any number of generated units.
+ * 
+ */
+final class TestStore {
+
+  static final String ID = "http://oxpoints.oucs.ox.ac.uk/id/";
+  static final String UNIVERSITY = ID + "23232373";
+  static final String BALLIOL = ID + "23232401";
+  static final String EXETER = ID + "23232402";
+  static final String JESUS = ID + "23232403";
+  static final String OUCS = ID + "23232501";
+
+  private static final String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+  private final StringBuilder rdf = new StringBuilder();
+
+  private TestStore() {}
+
+  /**
+   * @param units the number of generated units to add
+   */
+  static Gaboto create(String dataDirectory, int units) {
+    Gaboto gaboto = GabotoFactory.getEmptyInMemoryGaboto();
+    gaboto.read(rdf(units));
+    gaboto.recreateTimeDimensionIndex();
+    GabotoStores.register(dataDirectory, gaboto);
+    return gaboto;
+  }
+
+  static GabotoSnapshot snapshot(Gaboto gaboto) {
+    return gaboto.getSnapshot(TimeInstant.from(Calendar.getInstance()));
+  }
+
+  /**
+   * @return the URI of the nth generated unit
+   */
+  static String unit(int n) {
+    return ID + (30000000 + n);
+  }
+
+  static String rdf(int units) {
+    TestStore store = new TestStore();
+    store.entity(UNIVERSITY, "University", "University of Oxford");
+    store.literal(OxPointsVocab.hasOUCSCode, "oxford");
+    store.end();
+    store.college(BALLIOL, "Balliol College", "balliol", "BAL", 51.7547, -1.2577);
+    store.college(EXETER, "Exeter College", "exeter", "EXE", 51.7537, -1.2556);
+    store.college(JESUS, "Jesus College", "jesus", null, 51.7532, -1.2570);
+    store.entity(OUCS, "Department", "Computing Services");
+    store.literal(OxPointsVocab.hasOUCSCode, "oucs");
+    store.literal(OxPointsVocab.hasFinanceCode, "FA");
+    store.link(DCTermsVocab.isPartOf, UNIVERSITY);
+    store.link(OxPointsVocab.occupies, ID + "23233501");
+    store.end();
+    store.building(ID + "23233501", "13 Banbury Road", 51.7603, -1.2608);
+    for (int i = 0; i < units; i++) {
+      store.entity(unit(i), "Unit", "Unit " + i);
+      store.literal(OxPointsVocab.hasOUCSCode, "unit" + i);
+      if (i % 3 == 0)
+        store.literal(OxPointsVocab.hasOLISCode, "U" + i);
+      store.link(DCTermsVocab.isPartOf, i % 10 == 0 ? UNIVERSITY : unit(i - i % 10));
+      store.link(OxPointsVocab.occupies, ID + (31000000 + i));
+      store.end();
+      store.building(ID + (31000000 + i), "Building " + i, 51.70 + (i % 100) * 0.001, -1.30 + (i / 100) * 0.001);
+    }
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rdf:RDF xmlns:rdf=\"" + RDF + "\">\n" 
+        + store.rdf + "</rdf:RDF>\n";
+  }
+
+  private void college(String uri, String title, String oucs, String olis, double lat, double lng) {
+    String building = uri.replace("2323240", "2323340");
+    entity(uri, "College", title);
+    literal(OxPointsVocab.hasOUCSCode, oucs);
+    if (olis != null)
+      literal(OxPointsVocab.hasOLISCode, olis);
+    link(DCTermsVocab.isPartOf, UNIVERSITY);
+    link(OxPointsVocab.occupies, building);
+    end();
+    building(building, title + " main site", lat, lng);
+  }
+
+  private void building(String uri, String title, double lat, double lng) {
+    entity(uri, "Building", title);
+    literal(GeoVocab.lat, Double.toString(lat));
+    literal(GeoVocab.long_, Double.toString(lng));
+    end();
+  }
+
+  private void entity(String uri, String type, String title) {
+    rdf.append("  <rdf:Description rdf:about=\"").append(uri).append("\">\n");
+    rdf.append("    <rdf:type rdf:resource=\"").append(OxPointsVocab.NS).append(type).append("\"/>\n");
+    literal(DCVocab.title, title);
+  }
+
+  private void literal(Property property, String value) {
+    String name = property.getLocalName();
+    rdf.append("    <").append(name).append(" xmlns=\"").append(property.getNameSpace()).append("\">")
+        .append(value.replace("&", "&amp;").replace("<", "&lt;")).append("</").append(name).append(">\n");
+  }
+
+  private void link(Property property, String uri) {
+    rdf.append("    <").append(property.getLocalName()).append(" xmlns=\"").append(property.getNameSpace())
+        .append("\" rdf:resource=\"")
+        .append(uri).append("\"/>\n");
+  }
+
+  private void end() {
+    rdf.append("  </rdf:Description>\n");
+  }
+
+}